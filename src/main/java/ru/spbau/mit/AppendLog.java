@@ -0,0 +1,309 @@
+package ru.spbau.mit;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of state changes that is written with group commit: records appended concurrently
+ * are written by a single thread and made durable with one fsync.
+ *
+ * The log is a sequence of segment files {@code <name>.0}, {@code <name>.1}, ...
+ * When the active segment grows over the compaction threshold, a new segment is started
+ * and the owner is asked to write a snapshot of its state in the background, after which
+ * the older segments are deleted. So recovery reads at most a snapshot and a short log,
+ * and appends are not blocked while the snapshot is written.
+ *
+ * Records have to be idempotent and the state has to be changed before the change is appended:
+ * then a snapshot contains every change of the segments it replaces and replaying a record twice does no harm.
+ *
+ * Record format: <length: Int> <crc32: Int> <payload: length Bytes>.
+ * A torn or corrupted tail of a segment left by a crash is ignored on recovery;
+ * after a failed write the log goes on in a new segment, so no record is appended after such a tail.
+ */
+class AppendLog implements Closeable {
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private final Path path;
+    private final Snapshotter snapshotter;
+    private final long compactionThreshold;
+    private final BlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+    private final Object writeLock = new Object();
+    private final Object snapshotLock = new Object();
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+    private FileChannel channel;
+    private long segmentNumber;
+    private long segmentSize = 0;
+    private boolean channelClosed = false;
+    private boolean closed = false;
+
+    interface RecordConsumer {
+        void accept(DataInputStream record) throws IOException;
+    }
+
+    interface Snapshotter {
+        void writeSnapshot() throws IOException;
+    }
+
+    /**
+     * Replays the records that are already in the log, then starts a new segment for appending.
+     */
+    AppendLog(Path path, RecordConsumer replayer, Snapshotter snapshotter,
+              long compactionThreshold) throws IOException {
+        this.path = path;
+        this.snapshotter = snapshotter;
+        this.compactionThreshold = compactionThreshold;
+        TreeMap<Long, Path> segments = listSegments();
+        for (Path segment : segments.values()) {
+            replay(segment, replayer);
+        }
+        segmentNumber = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        channel = openSegment(segmentNumber);
+        writerThread = new Thread(this::writeLoop, "append-log-writer " + path.getFileName());
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * @return future that is completed when the record is durable
+     */
+    public CompletableFuture<Void> append(byte[] record) {
+        PendingRecord pending = new PendingRecord(record);
+        synchronized (queue) {
+            if (closed) {
+                pending.future.completeExceptionally(new IOException("Log " + path + " is closed"));
+            } else {
+                queue.add(pending);
+            }
+        }
+        return pending.future;
+    }
+
+    public void appendAndWait(byte[] record) throws IOException {
+        try {
+            append(record).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Starts a new segment, then writes a snapshot and deletes the segments it replaces.
+     * Appends only wait for the segment switch, not for the snapshot.
+     */
+    public void compact() throws IOException {
+        synchronized (snapshotLock) {
+            long firstKeptSegment;
+            synchronized (writeLock) {
+                if (channelClosed) {
+                    return;
+                }
+                channel.close();
+                firstKeptSegment = segmentNumber + 1;
+                channel = openSegment(firstKeptSegment);
+                segmentNumber = firstKeptSegment;
+                segmentSize = 0;
+            }
+            snapshotter.writeSnapshot();
+            deleteSegmentsBefore(firstKeptSegment);
+        }
+    }
+
+    /**
+     * Waits until the records appended before are written, then writes a snapshot and removes the log.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (queue) {
+            closed = true;
+            queue.add(new PendingRecord(null));
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (writeLock) {
+            channelClosed = true;
+            channel.close();
+        }
+        synchronized (snapshotLock) {
+            snapshotter.writeSnapshot();
+            deleteSegmentsBefore(Long.MAX_VALUE);
+        }
+    }
+
+    private TreeMap<Long, Path> listSegments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        Path directory = path.toAbsolutePath().getParent();
+        String prefix = path.getFileName().toString() + ".";
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*")) {
+            for (Path segment : stream) {
+                try {
+                    segments.put(Long.parseLong(segment.getFileName().toString().substring(prefix.length())),
+                            segment);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return segments;
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(Paths.get(path + "." + number), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    private void deleteSegmentsBefore(long number) throws IOException {
+        for (Path segment : listSegments().headMap(number).values()) {
+            Files.deleteIfExists(segment);
+        }
+    }
+
+    private static void replay(Path segment, RecordConsumer replayer) throws IOException {
+        try (DataInputStream stream = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(segment)))) {
+            while (true) {
+                byte[] record;
+                try {
+                    int length = stream.readInt();
+                    final int checksum = stream.readInt();
+                    if (length < 0 || length > MAX_RECORD_SIZE) {
+                        return;
+                    }
+                    record = new byte[length];
+                    stream.readFully(record);
+                    if (checksum != checksum(record)) {
+                        return;
+                    }
+                } catch (EOFException e) {
+                    return;
+                }
+                replayer.accept(new DataInputStream(new ByteArrayInputStream(record)));
+            }
+        }
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    private void writeLoop() {
+        List<PendingRecord> batch = new ArrayList<>();
+        boolean stopped = false;
+        while (!stopped) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            int batchSize = 0;
+            for (PendingRecord pending : batch) {
+                if (pending.record == null) {
+                    stopped = true;
+                } else {
+                    batchSize += HEADER_SIZE + pending.record.length;
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(batchSize);
+            for (PendingRecord pending : batch) {
+                if (pending.record != null) {
+                    buffer.putInt(pending.record.length);
+                    buffer.putInt(checksum(pending.record));
+                    buffer.put(pending.record);
+                }
+            }
+            buffer.flip();
+            boolean needsCompaction;
+            try {
+                synchronized (writeLock) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(false);
+                    segmentSize += batchSize;
+                    needsCompaction = segmentSize > compactionThreshold;
+                }
+            } catch (IOException e) {
+                batch.forEach(pending -> pending.future.completeExceptionally(e));
+                batch.clear();
+                startSegmentAfterFailure();
+                continue;
+            }
+            batch.forEach(pending -> pending.future.complete(null));
+            batch.clear();
+            if (needsCompaction && !stopped && compacting.compareAndSet(false, true)) {
+                Thread compactionThread = new Thread(this::compactInBackground,
+                        "append-log-compaction " + path.getFileName());
+                compactionThread.setDaemon(true);
+                compactionThread.start();
+            }
+        }
+    }
+
+    /**
+     * The failed batch may have left a torn record, and replay stops at it,
+     * so the records after it go to a new segment.
+     */
+    private void startSegmentAfterFailure() {
+        synchronized (writeLock) {
+            if (channelClosed) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            try {
+                channel = openSegment(segmentNumber + 1);
+                segmentNumber++;
+                segmentSize = 0;
+            } catch (IOException e) {
+                // the next batch fails on the closed channel and tries again
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void compactInBackground() {
+        try {
+            compact();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    private static final class PendingRecord {
+        private final byte[] record; // null asks the writer to stop
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private PendingRecord(byte[] record) {
+            this.record = record;
+        }
+    }
+}
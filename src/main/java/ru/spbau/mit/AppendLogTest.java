@@ -0,0 +1,166 @@
+package ru.spbau.mit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AppendLogTest {
+    private static final long NO_COMPACTION = Long.MAX_VALUE;
+    private static final long WAIT_SECONDS = 10;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<String> replayed = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger snapshotCount = new AtomicInteger(0);
+
+    @Test
+    public void testRecordFraming() throws IOException {
+        Path path = logPath();
+        try (AppendLog log = open(path, NO_COMPACTION)) {
+            log.appendAndWait(bytes("first"));
+            log.appendAndWait(bytes("second"));
+            assertArrayEquals(concat(frame("first"), frame("second")), Files.readAllBytes(segment(path, 0)));
+        }
+    }
+
+    @Test
+    public void testReplayInOrder() throws IOException {
+        Path path = logPath();
+        Files.write(segment(path, 0), concat(frame("a"), frame("b")));
+        Files.write(segment(path, 1), frame("c"));
+        try (AppendLog log = open(path, NO_COMPACTION)) {
+            assertEquals(Arrays.asList("a", "b", "c"), replayed);
+            log.appendAndWait(bytes("d"));
+            assertTrue("appends go to a new segment", Files.exists(segment(path, 2)));
+        }
+    }
+
+    @Test
+    public void testTornTailIgnored() throws IOException {
+        Path path = logPath();
+        byte[] torn = frame("torn record");
+        Files.write(segment(path, 0), concat(frame("a"), Arrays.copyOf(torn, torn.length - 1)));
+        Files.write(segment(path, 1), frame("b"));
+        open(path, NO_COMPACTION).close();
+        assertEquals(Arrays.asList("a", "b"), replayed);
+    }
+
+    @Test
+    public void testCorruptedRecordIgnored() throws IOException {
+        Path path = logPath();
+        byte[] corrupted = frame("corrupted");
+        corrupted[corrupted.length - 1] ^= 1;
+        Files.write(segment(path, 0), concat(frame("a"), corrupted, frame("after")));
+        byte[] badLength = frame("bad length");
+        ByteBuffer.wrap(badLength).putInt(0, -1);
+        Files.write(segment(path, 1), concat(badLength, frame("after")));
+        open(path, NO_COMPACTION).close();
+        assertEquals(Collections.singletonList("a"), replayed);
+    }
+
+    @Test
+    public void testCompactionReplacesSegments() throws IOException {
+        Path path = logPath();
+        try (AppendLog log = open(path, NO_COMPACTION)) {
+            log.appendAndWait(bytes("a"));
+            log.compact();
+            assertEquals(1, snapshotCount.get());
+            assertFalse(Files.exists(segment(path, 0)));
+            log.appendAndWait(bytes("b"));
+            assertArrayEquals(frame("b"), Files.readAllBytes(segment(path, 1)));
+        }
+    }
+
+    @Test
+    public void testCompactionOverThreshold() throws IOException, InterruptedException {
+        Path path = logPath();
+        CountDownLatch snapshotWritten = new CountDownLatch(1);
+        try (AppendLog log = new AppendLog(path, record -> { }, snapshotWritten::countDown, 1)) {
+            log.appendAndWait(bytes("over the threshold"));
+            assertTrue(snapshotWritten.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testCloseWritesSnapshot() throws IOException {
+        Path path = logPath();
+        AppendLog log = open(path, NO_COMPACTION);
+        log.append(bytes("a"));
+        log.close();
+        assertEquals(1, snapshotCount.get());
+        assertFalse(Files.exists(segment(path, 0)));
+        try {
+            log.append(bytes("b")).join();
+            fail("Appended to a closed log");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    private Path logPath() {
+        return temporaryFolder.getRoot().toPath().resolve("log");
+    }
+
+    private AppendLog open(Path path, long compactionThreshold) throws IOException {
+        return new AppendLog(path, this::replay, snapshotCount::incrementAndGet, compactionThreshold);
+    }
+
+    private void replay(DataInputStream record) throws IOException {
+        byte[] payload = new byte[record.available()];
+        record.readFully(payload);
+        replayed.add(new String(payload, StandardCharsets.UTF_8));
+    }
+
+    private static Path segment(Path path, long number) {
+        return path.resolveSibling(path.getFileName() + "." + number);
+    }
+
+    private static byte[] bytes(String record) {
+        return record.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] frame(String record) throws IOException {
+        byte[] payload = bytes(record);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(frame);
+        stream.writeInt(payload.length);
+        stream.writeInt((int) crc.getValue());
+        stream.write(payload);
+        return frame.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            bytes.write(part);
+        }
+        return bytes.toByteArray();
+    }
+}
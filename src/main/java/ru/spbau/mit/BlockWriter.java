@@ -0,0 +1,35 @@
+package ru.spbau.mit;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Stores blocks of a file that is being downloaded.
+ * The file channel is owned by the download, which closes it after the writer.
+ */
+interface BlockWriter extends Closeable {
+    /**
+     * Reads the next length bytes of the input and stores them at the given position of the file.
+     *
+     * @param buffer block-sized buffer the writer may use to hold the data
+     * @return read-only view of the stored bytes, valid until the next call with the same buffer
+     */
+    ByteBuffer receive(ReadableByteChannel input, long position, int length, ByteBuffer buffer) throws IOException;
+
+    /**
+     * Called when all the blocks of the range have been received,
+     * makes them durable before the range is journaled as present.
+     */
+    void flush(long position, int length) throws IOException;
+
+    static void readFully(ReadableByteChannel input, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (input.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package ru.spbau.mit;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of direct buffers of the same size. Buffers are allocated on first demand,
+ * at most capacity of them, and then reused, so transfers do not allocate large arrays on the heap.
+ * When all the buffers are taken, {@link #acquire} waits for one to be released;
+ * how often and how long it waits is counted, so that an undersized pool can be noticed.
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final int capacity;
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+    private final AtomicInteger allocatedCount = new AtomicInteger(0);
+    private final AtomicLong exhaustionCount = new AtomicLong(0);
+    private final AtomicLong waitNanos = new AtomicLong(0);
+
+    BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        freeBuffers = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * @return cleared buffer that has to be given back with {@link #release}
+     */
+    public ByteBuffer acquire() throws InterruptedIOException {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            buffer = allocate();
+        }
+        if (buffer == null) {
+            exhaustionCount.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                buffer = freeBuffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a buffer");
+            } finally {
+                waitNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || !freeBuffers.offer(buffer)) {
+            throw new IllegalArgumentException("Buffer does not belong to the pool");
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getAllocatedCount() {
+        return allocatedCount.get();
+    }
+
+    /**
+     * @return number of times {@link #acquire} found no free buffer and had to wait
+     */
+    public long getExhaustionCount() {
+        return exhaustionCount.get();
+    }
+
+    /**
+     * @return total time {@link #acquire} has spent waiting for free buffers
+     */
+    public long getWaitTime(TimeUnit unit) {
+        return unit.convert(waitNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    private ByteBuffer allocate() {
+        int count;
+        do {
+            count = allocatedCount.get();
+            if (count >= capacity) {
+                return null;
+            }
+        } while (!allocatedCount.compareAndSet(count, count + 1));
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+}
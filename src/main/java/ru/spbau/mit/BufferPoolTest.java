@@ -0,0 +1,94 @@
+package ru.spbau.mit;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BufferPoolTest {
+    private static final int BUFFER_SIZE = 16;
+    private static final int CAPACITY = 2;
+    private static final long WAIT_SECONDS = 10;
+
+    private final BufferPool pool = new BufferPool(BUFFER_SIZE, CAPACITY);
+
+    @Test
+    public void testBuffersReused() throws InterruptedIOException {
+        ByteBuffer first = pool.acquire();
+        assertTrue(first.isDirect());
+        assertEquals(BUFFER_SIZE, first.remaining());
+        first.putInt(1).flip();
+        pool.release(first);
+        ByteBuffer second = pool.acquire();
+        assertSame(first, second);
+        assertEquals("acquired buffer is cleared", BUFFER_SIZE, second.remaining());
+        assertEquals(1, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void testAllocatedUpToCapacity() throws Exception {
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+        assertNotSame(first, second);
+        assertEquals(CAPACITY, pool.getAllocatedCount());
+        assertEquals(0, pool.getExhaustionCount());
+
+        CompletableFuture<ByteBuffer> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.acquire();
+            } catch (InterruptedIOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (pool.getExhaustionCount() == 0) {
+            Thread.yield();
+        }
+        assertFalse(waiting.isDone());
+        pool.release(second);
+        assertSame(second, waiting.get(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(CAPACITY, pool.getAllocatedCount());
+        assertEquals(1, pool.getExhaustionCount());
+    }
+
+    @Test
+    public void testInterruptedWait() throws InterruptedIOException {
+        for (int i = 0; i < CAPACITY; i++) {
+            pool.acquire();
+        }
+        Thread.currentThread().interrupt();
+        try {
+            pool.acquire();
+            fail("Acquired a buffer from an exhausted pool");
+        } catch (InterruptedIOException e) {
+            assertTrue("interrupt status is kept", Thread.interrupted());
+        }
+    }
+
+    @Test
+    public void testForeignBufferRejected() throws InterruptedIOException {
+        try {
+            pool.release(ByteBuffer.allocateDirect(BUFFER_SIZE + 1));
+            fail("Released a buffer of another size");
+        } catch (IllegalArgumentException ignored) {
+        }
+        ByteBuffer buffer = pool.acquire();
+        pool.release(buffer);
+        for (int i = 0; i < CAPACITY - 1; i++) {
+            pool.release(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+        try {
+            pool.release(ByteBuffer.allocateDirect(BUFFER_SIZE));
+            fail("Released more buffers than the pool holds");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+}
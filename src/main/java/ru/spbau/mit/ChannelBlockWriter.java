@@ -0,0 +1,40 @@
+package ru.spbau.mit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Receives blocks into the given buffer and writes them with positional writes.
+ */
+class ChannelBlockWriter implements BlockWriter {
+    private final FileChannel file;
+
+    ChannelBlockWriter(FileChannel file) {
+        this.file = file;
+    }
+
+    @Override
+    public ByteBuffer receive(ReadableByteChannel input, long position, int length,
+                              ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        BlockWriter.readFully(input, buffer);
+        buffer.flip();
+        ByteBuffer block = buffer.asReadOnlyBuffer();
+        while (buffer.hasRemaining()) {
+            position += file.write(buffer, position);
+        }
+        return block;
+    }
+
+    @Override
+    public void flush(long position, int length) throws IOException {
+        file.force(false);
+    }
+
+    @Override
+    public void close() {
+    }
+}
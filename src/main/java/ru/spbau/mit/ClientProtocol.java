@@ -2,8 +2,13 @@ package ru.spbau.mit;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -12,7 +17,14 @@ import java.util.List;
 public final class ClientProtocol {
     public static final int STAT_QUERY = 1;
     public static final int GET_QUERY = 2;
+    public static final int GET_RANGE_QUERY = 3;
+    public static final int STAT_BITMAP_QUERY = 4;
+    public static final int PEX_QUERY = 5;
+    public static final int SUBSCRIBE_QUERY = 6;
+    public static final int KEEPALIVE = -1;
+    public static final int NOT_CHOKED = -1;
     public static final int PART_SIZE = 10 * 1024 * 1024;
+    public static final int BLOCK_SIZE = 256 * 1024;
     private ClientProtocol() {
 
     }
@@ -31,6 +43,33 @@ public final class ClientProtocol {
         outputStream.flush();
     }
 
+    /**
+     * Sends the same response as {@link #getGetQueryResponse(DataOutputStream, byte[])},
+     * but streams the part directly from the file without copying it to the heap.
+     */
+    public static void getGetQueryResponse(WritableByteChannel outputChannel, FileChannel file,
+                                           long position, int size) throws IOException {
+        long sentBytes = 0;
+        while (sentBytes < size) {
+            long transferred = file.transferTo(position + sentBytes, size - sentBytes, outputChannel);
+            if (transferred <= 0) {
+                throw new EOFException("File is shorter than requested part");
+            }
+            sentBytes += transferred;
+        }
+    }
+
+    /**
+     * Sends the same response as {@link #getGetQueryResponse(DataOutputStream, byte[])}
+     * from the remaining bytes of the buffer.
+     */
+    public static void getGetQueryResponse(WritableByteChannel outputChannel,
+                                           ByteBuffer content) throws IOException {
+        while (content.hasRemaining()) {
+            outputChannel.write(content);
+        }
+    }
+
     public static byte[] makeGetQuery(DataInputStream inputStream, DataOutputStream outputStream, int fileId,
                                       int partId, int partSize) throws IOException {
         outputStream.writeByte(GET_QUERY);
@@ -38,13 +77,57 @@ public final class ClientProtocol {
         outputStream.writeInt(partId);
         outputStream.flush();
         byte[] buffer = new byte[partSize];
-        int readBytes = 0;
-        while (readBytes < partSize) {
-            readBytes += inputStream.read(buffer, readBytes, partSize - readBytes);
-        }
+        inputStream.readFully(buffer);
         return buffer;
     }
 
+    //GET RANGE QUERY
+    // <3: Byte> <id: Int> <part: Int> <offset: Int> <length: Int>
+    //     -> <choked: Byte> (<content: Bytes> if not choked | <retry after milliseconds: Int> if choked)
+    // The content is the same as the GET response, so it is sent with getGetQueryResponse after the header.
+    // A choked peer is not uploaded to until the seeder gives it an upload slot, it may retry after the delay.
+    // Several requests may be sent before reading the responses, they are answered in order.
+    public static GetRangeQueryData getGetRangeQueryData(DataInputStream inputStream) throws IOException {
+        return new GetRangeQueryData(inputStream.readInt(), inputStream.readInt(),
+                inputStream.readInt(), inputStream.readInt());
+    }
+
+    public static void makeGetRangeRequest(DataOutputStream outputStream, int fileId, int partId,
+                                           int offset, int length) throws IOException {
+        outputStream.writeByte(GET_RANGE_QUERY);
+        outputStream.writeInt(fileId);
+        outputStream.writeInt(partId);
+        outputStream.writeInt(offset);
+        outputStream.writeInt(length);
+        outputStream.flush();
+    }
+
+    public static void getRangeUnchokedHeader(DataOutputStream outputStream) throws IOException {
+        outputStream.writeByte(0);
+        outputStream.flush();
+    }
+
+    public static void getRangeChokedResponse(DataOutputStream outputStream, int retryDelay) throws IOException {
+        outputStream.writeByte(1);
+        outputStream.writeInt(retryDelay);
+        outputStream.flush();
+    }
+
+    /**
+     * @return NOT_CHOKED if the content follows, otherwise the delay after which the request may be retried
+     */
+    public static int readGetRangeHeader(DataInputStream inputStream) throws IOException {
+        if (inputStream.readByte() == 0) {
+            return NOT_CHOKED;
+        }
+        return inputStream.readInt();
+    }
+
+    public static void readGetRangeResponse(DataInputStream inputStream, byte[] buffer,
+                                            int length) throws IOException {
+        inputStream.readFully(buffer, 0, length);
+    }
+
     //STAT QUERY
     public static int getStatQueryId(DataInputStream inputStream) throws IOException {
         return inputStream.readInt();
@@ -72,6 +155,105 @@ public final class ClientProtocol {
         return parts;
     }
 
+    //STAT BITMAP QUERY
+    // <4: Byte> <id: Int> -> <count: Int> <bitmap: (count + 7) / 8 Bytes>, count is the number of parts,
+    // part i is available if bit (7 - i % 8) of byte i / 8 is set
+    public static void statBitmapQueryResponse(DataOutputStream outputStream, PartSet parts) throws IOException {
+        outputStream.writeInt(parts.partCount());
+        outputStream.write(parts.toBitmap());
+        outputStream.flush();
+    }
+
+    public static PartSet makeStatBitmapQuery(DataInputStream inputStream, DataOutputStream outputStream,
+                                              int fileId, int partCount) throws IOException {
+        outputStream.writeByte(STAT_BITMAP_QUERY);
+        outputStream.writeInt(fileId);
+        outputStream.flush();
+        return readBitmap(inputStream, fileId, partCount);
+    }
+
+    private static PartSet readBitmap(DataInputStream inputStream, int fileId, int partCount) throws IOException {
+        int count = inputStream.readInt();
+        if (count != partCount) {
+            throw new IOException("Expected " + partCount + " parts of file " + fileId + ", got " + count);
+        }
+        byte[] bitmap = new byte[PartSet.getBitmapLength(count)];
+        inputStream.readFully(bitmap);
+        return PartSet.fromBitmap(count, bitmap);
+    }
+
+    //SUBSCRIBE QUERY
+    // <6: Byte> <id: Int> -> <count: Int> <bitmap as in STAT BITMAP response> (<part id: Int>)*
+    // after the bitmap the seeder pushes the id of every part it gets, or KEEPALIVE when there is nothing to push
+    // for a while; the connection carries only the pushes, the subscriber closes it to unsubscribe
+    public static void subscribeQueryResponse(DataOutputStream outputStream, PartSet parts) throws IOException {
+        statBitmapQueryResponse(outputStream, parts);
+    }
+
+    public static void pushPart(DataOutputStream outputStream, int partId) throws IOException {
+        outputStream.writeInt(partId);
+        outputStream.flush();
+    }
+
+    public static PartSet makeSubscribeQuery(DataInputStream inputStream, DataOutputStream outputStream,
+                                             int fileId, int partCount) throws IOException {
+        outputStream.writeByte(SUBSCRIBE_QUERY);
+        outputStream.writeInt(fileId);
+        outputStream.flush();
+        return readBitmap(inputStream, fileId, partCount);
+    }
+
+    /**
+     * @return id of a part the seeder has got, or KEEPALIVE
+     */
+    public static int readPushedPart(DataInputStream inputStream) throws IOException {
+        return inputStream.readInt();
+    }
+
+    //PEX QUERY
+    // <5: Byte> <id: Int> <port: Short> <count: Int> (<ip: 4 Bytes> <port: Short>)*
+    //     -> <count: Int> (<ip: 4 Bytes> <port: Short>)*
+    // peer exchange: the requester sends its seeding port and some peers it knows for the file,
+    // and gets some peers the other side knows for it
+    public static PexQueryData getPexQueryData(DataInputStream inputStream) throws IOException {
+        int id = inputStream.readInt();
+        int port = inputStream.readShort();
+        return new PexQueryData(id, port, TrackerProtocol.readSources(inputStream));
+    }
+
+    public static void pexQueryResponse(DataOutputStream outputStream,
+                                        Collection<TrackerProtocol.ClientEntry> peers) throws IOException {
+        TrackerProtocol.writeClientEntries(outputStream, peers);
+        outputStream.flush();
+    }
+
+    public static List<TrackerProtocol.ClientEntry> makePexQuery(DataInputStream inputStream,
+                                                                 DataOutputStream outputStream,
+                                                                 int fileId, int port,
+                                                                 Collection<TrackerProtocol.ClientEntry> peers)
+            throws IOException {
+        outputStream.writeByte(PEX_QUERY);
+        outputStream.writeInt(fileId);
+        outputStream.writeShort(port);
+        TrackerProtocol.writeClientEntries(outputStream, peers);
+        outputStream.flush();
+        return TrackerProtocol.readSources(inputStream);
+    }
+
+    public static class PexQueryData {
+        // CHECKSTYLE.OFF: VisibilityModifier
+        int id;
+        int port;
+        List<TrackerProtocol.ClientEntry> peers;
+        // CHECKSTYLE.ON: VisibilityModifier
+
+        PexQueryData(int id, int port, List<TrackerProtocol.ClientEntry> peers) {
+            this.id = id;
+            this.port = port;
+            this.peers = peers;
+        }
+    }
+
     public static class GetQueryData {
         // CHECKSTYLE.OFF: VisibilityModifier
         int id;
@@ -83,4 +265,17 @@ public final class ClientProtocol {
             this.part = part;
         }
     }
+
+    public static class GetRangeQueryData extends GetQueryData {
+        // CHECKSTYLE.OFF: VisibilityModifier
+        int offset;
+        int length;
+        // CHECKSTYLE.ON: VisibilityModifier
+
+        GetRangeQueryData(int id, int part, int offset, int length) {
+            super(id, part);
+            this.offset = offset;
+            this.length = length;
+        }
+    }
 }
@@ -0,0 +1,37 @@
+package ru.spbau.mit;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking connection to a tracker or a peer.
+ * The socket is channel-backed, so data can also be transferred through {@link #channel}.
+ */
+class Connection implements Closeable {
+    // CHECKSTYLE.OFF: VisibilityModifier
+    final SocketChannel channel;
+    final DataInputStream inputStream;
+    final DataOutputStream outputStream;
+    // CHECKSTYLE.ON: VisibilityModifier
+
+    Connection(String host, int port) throws IOException {
+        this(new InetSocketAddress(host, port));
+    }
+
+    Connection(InetSocketAddress address) throws IOException {
+        channel = SocketChannel.open(address);
+        inputStream = new DataInputStream(channel.socket().getInputStream());
+        outputStream = new DataOutputStream(channel.socket().getOutputStream());
+    }
+
+    @Override
+    public void close() throws IOException {
+        outputStream.close();
+        inputStream.close();
+        channel.close();
+    }
+}
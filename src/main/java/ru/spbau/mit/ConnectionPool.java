@@ -0,0 +1,155 @@
+package ru.spbau.mit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Keeps idle peer connections open so that consecutive queries to the same (ip, port)
+ * do not pay for a new TCP handshake. Idle connections are checked before reuse
+ * and closed after {@link #IDLE_TIMEOUT} milliseconds by default.
+ */
+class ConnectionPool implements Closeable {
+    public static final long IDLE_TIMEOUT = 30 * 1000;
+    private static final int MAX_IDLE_CONNECTIONS_PER_PEER = 4;
+
+    private final long idleTimeout;
+    private final Map<InetSocketAddress, Deque<IdleConnection>> idleConnections = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    ConnectionPool() {
+        this(IDLE_TIMEOUT);
+    }
+
+    /**
+     * @param idleTimeout milliseconds after which an idle connection is closed
+     */
+    ConnectionPool(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    interface Query<T> {
+        T run(Connection connection) throws IOException;
+    }
+
+    /**
+     * Runs the query on a pooled connection to the given address.
+     * If a reused connection turns out to be broken, the query is repeated once on a fresh one.
+     */
+    public <T> T execute(InetSocketAddress address, Query<T> query) throws IOException {
+        Connection connection = pollIdle(address);
+        if (connection != null) {
+            try {
+                T result = query.run(connection);
+                release(address, connection);
+                return result;
+            } catch (IOException e) {
+                connection.close(); // the peer has probably dropped it, try again on a new connection
+            } catch (RuntimeException e) {
+                connection.close();
+                throw e;
+            }
+        }
+        connection = new Connection(address);
+        try {
+            T result = query.run(connection);
+            release(address, connection);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Deque<IdleConnection> connections : idleConnections.values()) {
+            Iterator<IdleConnection> iterator = connections.iterator();
+            while (iterator.hasNext()) {
+                IdleConnection idle = iterator.next();
+                if (now - idle.releaseTime >= idleTimeout && connections.removeFirstOccurrence(idle)) {
+                    closeQuietly(idle.connection);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Deque<IdleConnection> connections : idleConnections.values()) {
+            IdleConnection idle;
+            while ((idle = connections.pollFirst()) != null) {
+                closeQuietly(idle.connection);
+            }
+        }
+    }
+
+    private Connection pollIdle(InetSocketAddress address) {
+        Deque<IdleConnection> connections = idleConnections.get(address);
+        if (connections == null) {
+            return null;
+        }
+        IdleConnection idle;
+        while ((idle = connections.pollLast()) != null) {
+            if (System.currentTimeMillis() - idle.releaseTime < idleTimeout && isHealthy(idle.connection)) {
+                return idle.connection;
+            }
+            closeQuietly(idle.connection);
+        }
+        return null;
+    }
+
+    private void release(InetSocketAddress address, Connection connection) {
+        Deque<IdleConnection> connections = idleConnections.computeIfAbsent(address,
+                key -> new ConcurrentLinkedDeque<>());
+        if (closed || connections.size() >= MAX_IDLE_CONNECTIONS_PER_PEER) {
+            closeQuietly(connection);
+            return;
+        }
+        connections.addLast(new IdleConnection(connection));
+    }
+
+    /**
+     * An idle connection is healthy if the peer has neither closed it
+     * nor sent anything we did not ask for.
+     */
+    private static boolean isHealthy(Connection connection) {
+        if (!connection.channel.isOpen()) {
+            return false;
+        }
+        try {
+            connection.channel.configureBlocking(false);
+            try {
+                return connection.channel.read(ByteBuffer.allocate(1)) == 0;
+            } finally {
+                connection.channel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static final class IdleConnection {
+        private final Connection connection;
+        private final long releaseTime = System.currentTimeMillis();
+
+        private IdleConnection(Connection connection) {
+            this.connection = connection;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package ru.spbau.mit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class ConnectionPoolTest {
+    private static final long IDLE_TIMEOUT = 200;
+    private static final int MAX_IDLE_CONNECTIONS_PER_PEER = 4;
+    private static final long WAIT_SECONDS = 10;
+
+    private final ExecutorService threads = Executors.newCachedThreadPool();
+    private final Set<Socket> peerSockets = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger acceptedCount = new AtomicInteger(0);
+    private final AtomicInteger closedCount = new AtomicInteger(0);
+    private final ConnectionPool pool = new ConnectionPool(IDLE_TIMEOUT);
+    private ServerSocket peer;
+    private InetSocketAddress address;
+
+    @Before
+    public void startPeer() throws IOException {
+        peer = new ServerSocket(0);
+        address = new InetSocketAddress("localhost", peer.getLocalPort());
+        threads.submit(this::acceptConnections);
+    }
+
+    @After
+    public void stopPeer() throws IOException {
+        pool.close();
+        peer.close();
+        closePeerSockets();
+        threads.shutdownNow();
+    }
+
+    // CHECKSTYLE.OFF: MagicNumber
+    @Test
+    public void testConnectionReused() throws IOException {
+        List<Connection> connections = new ArrayList<>();
+        assertEquals(2, increment(1, connections));
+        assertEquals(3, increment(2, connections));
+        assertSame(connections.get(0), connections.get(1));
+        assertEquals(1, acceptedCount.get());
+    }
+
+    @Test
+    public void testClosedConnectionReplaced() throws IOException {
+        List<Connection> connections = new ArrayList<>();
+        increment(1, connections);
+        closePeerSockets();
+        // the closed connection fails the health check, or the query on it fails and is repeated
+        assertEquals(3, increment(2, connections));
+        assertNotSame(connections.get(0), connections.get(1));
+        assertEquals(2, acceptedCount.get());
+    }
+
+    @Test
+    public void testIdleConnectionsEvicted() throws IOException, InterruptedException {
+        increment(1, new ArrayList<>());
+        pool.evictIdle();
+        assertEquals(0, closedCount.get());
+        Thread.sleep(IDLE_TIMEOUT);
+        pool.evictIdle();
+        awaitClosed(1);
+        increment(2, new ArrayList<>());
+        assertEquals(2, acceptedCount.get());
+    }
+
+    @Test
+    public void testIdleConnectionsLimited() throws Exception {
+        int queryCount = MAX_IDLE_CONNECTIONS_PER_PEER + 1;
+        runConcurrently(queryCount);
+        assertEquals(queryCount, acceptedCount.get());
+        awaitClosed(queryCount - MAX_IDLE_CONNECTIONS_PER_PEER);
+        runConcurrently(queryCount);
+        assertEquals("only the kept idle connections are reused", 2 * queryCount - MAX_IDLE_CONNECTIONS_PER_PEER,
+                acceptedCount.get());
+    }
+
+    @Test
+    public void testClosedPoolKeepsNothing() throws IOException, InterruptedException {
+        increment(1, new ArrayList<>());
+        pool.close();
+        awaitClosed(1);
+        increment(2, new ArrayList<>());
+        awaitClosed(2);
+    }
+    // CHECKSTYLE.ON: MagicNumber
+
+    /**
+     * Runs the queries at once, so that every one of them needs a connection of its own,
+     * and lets them finish one after another.
+     */
+    private void runConcurrently(int queryCount) throws Exception {
+        CountDownLatch started = new CountDownLatch(queryCount);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < queryCount; i++) {
+            final int value = i;
+            final Future<Integer> previous = i == 0 ? null : results.get(i - 1);
+            results.add(threads.submit(() -> pool.execute(address, connection -> {
+                started.countDown();
+                try {
+                    started.await(WAIT_SECONDS, TimeUnit.SECONDS);
+                    if (previous != null) {
+                        previous.get(WAIT_SECONDS, TimeUnit.SECONDS);
+                    }
+                } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                    throw new InterruptedIOException(e.toString());
+                }
+                return query(connection, value);
+            })));
+        }
+        for (int i = 0; i < queryCount; i++) {
+            assertEquals(i + 1, (int) results.get(i).get(WAIT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+
+    private int increment(int value, List<Connection> connections) throws IOException {
+        return pool.execute(address, connection -> {
+            connections.add(connection);
+            return query(connection, value);
+        });
+    }
+
+    private static int query(Connection connection, int value) throws IOException {
+        connection.outputStream.writeInt(value);
+        connection.outputStream.flush();
+        return connection.inputStream.readInt();
+    }
+
+    private void awaitClosed(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(WAIT_SECONDS);
+        while (closedCount.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, closedCount.get());
+    }
+
+    private void closePeerSockets() throws IOException {
+        for (Socket socket : peerSockets) {
+            socket.close();
+        }
+    }
+
+    private void acceptConnections() {
+        while (!peer.isClosed()) {
+            try {
+                Socket socket = peer.accept();
+                acceptedCount.incrementAndGet();
+                peerSockets.add(socket);
+                threads.submit(() -> answerIncrements(socket));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Answers every number with the next one until the connection is closed.
+     */
+    private void answerIncrements(Socket socket) {
+        try (DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+             DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream())) {
+            while (true) {
+                outputStream.writeInt(inputStream.readInt() + 1);
+                outputStream.flush();
+            }
+        } catch (EOFException e) {
+            closedCount.incrementAndGet();
+        } catch (IOException ignored) {
+            // closed by the test
+        } finally {
+            peerSockets.remove(socket);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package ru.spbau.mit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static ru.spbau.mit.TrackerProtocol.TrackerFileEntry;
+
+/**
+ * Immutable tracker catalog encoded as a LIST response, so that LIST and LIST SINCE are served by copying bytes.
+ * Files are only added, in the order of their ids; the ids may have gaps left by failed uploads.
+ * The version of the catalog is the id after the last file, and the files added since version v
+ * are the entries with ids starting from v.
+ */
+final class EncodedCatalog {
+    private final byte[] listResponse;
+    // by id: offset of the first entry with this id or a greater one, and the number of entries before it;
+    // the last element is for the version, that is the response length and the number of entries
+    private final int[] entryOffsets;
+    private final int[] entryCounts;
+
+    private EncodedCatalog(byte[] listResponse, int[] entryOffsets, int[] entryCounts) {
+        this.listResponse = listResponse;
+        this.entryOffsets = entryOffsets;
+        this.entryCounts = entryCounts;
+    }
+
+    /**
+     * @param files files ordered by id
+     */
+    static EncodedCatalog of(Collection<TrackerFileEntry> files) throws IOException {
+        int version = 0;
+        for (TrackerFileEntry entry : files) {
+            version = entry.id + 1;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(bytes);
+        int[] entryOffsets = new int[version + 1];
+        int[] entryCounts = new int[version + 1];
+        stream.writeInt(files.size());
+        int id = 0;
+        int count = 0;
+        for (TrackerFileEntry entry : files) {
+            for (; id <= entry.id; id++) {
+                entryOffsets[id] = bytes.size();
+                entryCounts[id] = count;
+            }
+            TrackerProtocol.writeListEntry(stream, entry);
+            count++;
+        }
+        entryOffsets[version] = bytes.size();
+        entryCounts[version] = count;
+        return new EncodedCatalog(bytes.toByteArray(), entryOffsets, entryCounts);
+    }
+
+    /**
+     * @return copy of the catalog with the entry appended, the entry id must not be less than the version
+     */
+    EncodedCatalog with(TrackerFileEntry entry) throws IOException {
+        if (entry.id < version()) {
+            throw new IllegalArgumentException("File " + entry.id + " is older than the catalog version");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TrackerProtocol.writeListEntry(new DataOutputStream(bytes), entry);
+        byte[] encodedEntry = bytes.toByteArray();
+        byte[] newResponse = Arrays.copyOf(listResponse, listResponse.length + encodedEntry.length);
+        System.arraycopy(encodedEntry, 0, newResponse, listResponse.length, encodedEntry.length);
+        int count = size();
+        ByteBuffer.wrap(newResponse).putInt(0, count + 1);
+        int[] newOffsets = Arrays.copyOf(entryOffsets, entry.id + 2);
+        int[] newCounts = Arrays.copyOf(entryCounts, entry.id + 2);
+        Arrays.fill(newOffsets, version(), entry.id + 1, listResponse.length);
+        Arrays.fill(newCounts, version(), entry.id + 1, count);
+        newOffsets[entry.id + 1] = newResponse.length;
+        newCounts[entry.id + 1] = count + 1;
+        return new EncodedCatalog(newResponse, newOffsets, newCounts);
+    }
+
+    int version() {
+        return entryOffsets.length - 1;
+    }
+
+    /**
+     * @return number of files
+     */
+    int size() {
+        return entryCounts[version()];
+    }
+
+    byte[] getListResponse() {
+        return listResponse;
+    }
+
+    /**
+     * @return offset in the LIST response of the first entry added since the version
+     */
+    int getOffsetSince(int version) {
+        return entryOffsets[version];
+    }
+
+    /**
+     * @return number of entries added since the version
+     */
+    int getCountSince(int version) {
+        return size() - entryCounts[version];
+    }
+}
@@ -0,0 +1,124 @@
+package ru.spbau.mit;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static ru.spbau.mit.TrackerProtocol.ListSinceQueryData;
+import static ru.spbau.mit.TrackerProtocol.TrackerFileEntry;
+
+public class EncodedCatalogTest {
+    private static final int FILE_COUNT = 5;
+
+    @Test
+    public void testEmpty() throws IOException {
+        EncodedCatalog catalog = EncodedCatalog.of(Collections.emptyList());
+        assertEquals(0, catalog.version());
+        assertEquals(Collections.emptyList(), names(list(catalog)));
+        assertEquals(catalog.getListResponse().length, catalog.getOffsetSince(0));
+    }
+
+    @Test
+    public void testWithMatchesFullEncoding() throws IOException {
+        List<TrackerFileEntry> files = files();
+        EncodedCatalog appended = EncodedCatalog.of(Collections.emptyList());
+        for (TrackerFileEntry entry : files) {
+            EncodedCatalog previous = appended;
+            appended = appended.with(entry);
+            assertEquals(previous.version() + 1, appended.version());
+            assertEquals(previous.version(), names(list(previous)).size());
+        }
+        EncodedCatalog encoded = EncodedCatalog.of(files);
+        assertEquals(FILE_COUNT, encoded.version());
+        assertArrayEquals(encoded.getListResponse(), appended.getListResponse());
+        assertEquals(names(files), names(list(appended)));
+    }
+
+    @Test
+    public void testEntriesSinceVersion() throws IOException {
+        List<TrackerFileEntry> files = files();
+        EncodedCatalog catalog = EncodedCatalog.of(files);
+        for (int version = 0; version <= FILE_COUNT; version++) {
+            ListSinceQueryData since = listSince(catalog, version);
+            assertEquals(FILE_COUNT, since.version);
+            assertEquals(names(files.subList(version, FILE_COUNT)), names(since.files));
+            for (int i = 0; i < since.files.size(); i++) {
+                assertEquals(version + i, since.files.get(i).id);
+            }
+        }
+    }
+
+    @Test
+    public void testIdGaps() throws IOException {
+        // CHECKSTYLE.OFF: MagicNumber
+        List<TrackerFileEntry> files = new ArrayList<>();
+        for (int id : new int[] {1, 2, 5}) {
+            files.add(new TrackerFileEntry(id, "file" + id, id));
+        }
+        EncodedCatalog appended = EncodedCatalog.of(Collections.emptyList());
+        for (TrackerFileEntry entry : files) {
+            appended = appended.with(entry);
+            assertEquals(entry.id + 1, appended.version());
+        }
+        EncodedCatalog encoded = EncodedCatalog.of(files);
+        assertEquals(6, encoded.version());
+        assertEquals(3, encoded.size());
+        assertArrayEquals(encoded.getListResponse(), appended.getListResponse());
+        for (EncodedCatalog catalog : Arrays.asList(encoded, appended)) {
+            assertEquals(names(files), names(list(catalog)));
+            assertEquals(names(files), names(listSince(catalog, 0).files));
+            assertEquals(names(files.subList(1, 3)), names(listSince(catalog, 2).files));
+            assertEquals(names(files.subList(2, 3)), names(listSince(catalog, 3).files));
+            assertEquals(names(files.subList(2, 3)), names(listSince(catalog, 5).files));
+            assertEquals(Collections.emptyList(), names(listSince(catalog, 6).files));
+        }
+        // CHECKSTYLE.ON: MagicNumber
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOlderEntryRejected() throws IOException {
+        EncodedCatalog.of(files()).with(new TrackerFileEntry(FILE_COUNT - 1, "old", 0));
+    }
+
+    private static List<TrackerFileEntry> files() {
+        List<TrackerFileEntry> files = new ArrayList<>();
+        for (int id = 0; id < FILE_COUNT; id++) {
+            files.add(new TrackerFileEntry(id, "file" + id, id * (long) Integer.MAX_VALUE));
+        }
+        return files;
+    }
+
+    private static List<TrackerFileEntry> list(EncodedCatalog catalog) throws IOException {
+        DataInputStream response = new DataInputStream(new ByteArrayInputStream(catalog.getListResponse()));
+        return TrackerProtocol.makeListQuery(response, new DataOutputStream(new ByteArrayOutputStream()));
+    }
+
+    private static ListSinceQueryData listSince(EncodedCatalog catalog, int version) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] response = catalog.getListResponse();
+        int offset = catalog.getOffsetSince(version);
+        TrackerProtocol.listSinceQueryResponse(new DataOutputStream(bytes), catalog.version(),
+                catalog.getCountSince(version), response, offset, response.length - offset);
+        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        DataOutputStream query = new DataOutputStream(new ByteArrayOutputStream());
+        return TrackerProtocol.makeListSinceQuery(stream, query, version);
+    }
+
+    private static List<String> names(List<TrackerFileEntry> files) {
+        List<String> names = new ArrayList<>();
+        for (TrackerFileEntry entry : files) {
+            names.add(entry.id + " " + entry.fileName + " " + entry.size);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,66 @@
+package ru.spbau.mit;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel: an entry is put into the slot of the tick when it expires,
+ * so touching an entry is O(1) and a tick only looks at the entries of one slot.
+ * The wheel spans more than the timeout, so a slot never holds entries from different turns.
+ */
+class ExpiryWheel<T> {
+    private final long tickMillis;
+    private final long timeoutMillis;
+    private final List<Set<T>> slots;
+    private final Map<T, Long> deadlineTicks = new HashMap<>();
+    private long currentTick;
+
+    ExpiryWheel(long tickMillis, long timeoutMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.timeoutMillis = timeoutMillis;
+        int slotCount = (int) (timeoutMillis / tickMillis) + 2;
+        slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new HashSet<>());
+        }
+        currentTick = now / tickMillis;
+    }
+
+    /**
+     * (Re)schedules expiry of the entry timeoutMillis after now.
+     */
+    public synchronized void touch(T entry, long now) {
+        long deadlineTick = (now + timeoutMillis + tickMillis - 1) / tickMillis;
+        Long oldDeadlineTick = deadlineTicks.put(entry, deadlineTick);
+        if (oldDeadlineTick != null) {
+            slot(oldDeadlineTick).remove(entry);
+        }
+        slot(deadlineTick).add(entry);
+    }
+
+    /**
+     * Moves the wheel up to now and passes the expired entries to the consumer.
+     * The consumer is called without holding the wheel lock.
+     */
+    public void advance(long now, Consumer<T> onExpire) {
+        List<T> expired = new ArrayList<>();
+        synchronized (this) {
+            for (long nowTick = now / tickMillis; currentTick <= nowTick; currentTick++) {
+                Iterator<T> iterator = slot(currentTick).iterator();
+                while (iterator.hasNext()) {
+                    T entry = iterator.next();
+                    if (deadlineTicks.get(entry) <= currentTick) {
+                        iterator.remove();
+                        deadlineTicks.remove(entry);
+                        expired.add(entry);
+                    }
+                }
+            }
+        }
+        expired.forEach(onExpire);
+    }
+
+    private Set<T> slot(long tick) {
+        return slots.get((int) (tick % slots.size()));
+    }
+}
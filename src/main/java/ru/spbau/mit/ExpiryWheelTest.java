@@ -0,0 +1,72 @@
+package ru.spbau.mit;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExpiryWheelTest {
+    private static final long TICK = 1000;
+    private static final long TIMEOUT = 5 * TICK;
+
+    private final ExpiryWheel<String> wheel = new ExpiryWheel<>(TICK, TIMEOUT, 0);
+
+    // CHECKSTYLE.OFF: MagicNumber
+    @Test
+    public void testExpiresAfterTimeout() {
+        wheel.touch("peer", 0);
+        assertTrue(advance(TIMEOUT - 1).isEmpty());
+        assertEquals(Collections.singletonList("peer"), advance(TIMEOUT));
+        assertTrue(advance(2 * TIMEOUT).isEmpty());
+    }
+
+    @Test
+    public void testNeverExpiresEarly() {
+        long touchTime = TICK + TICK / 2;
+        wheel.touch("peer", touchTime);
+        assertTrue(advance(touchTime + TIMEOUT - 1).isEmpty());
+        assertEquals(Collections.singletonList("peer"), advance(touchTime + TIMEOUT + TICK));
+    }
+
+    @Test
+    public void testTouchPostponesExpiry() {
+        wheel.touch("peer", 0);
+        wheel.touch("peer", 3 * TICK);
+        assertTrue(advance(TIMEOUT).isEmpty());
+        assertEquals(Collections.singletonList("peer"), advance(3 * TICK + TIMEOUT));
+    }
+
+    @Test
+    public void testAdvanceOverSeveralTurns() {
+        wheel.touch("first", 0);
+        wheel.touch("second", 2 * TICK);
+        List<String> expired = advance(10 * TIMEOUT);
+        Collections.sort(expired);
+        assertEquals(Arrays.asList("first", "second"), expired);
+        wheel.touch("first", 10 * TIMEOUT);
+        assertTrue(advance(11 * TIMEOUT - 1).isEmpty());
+        assertEquals(Collections.singletonList("first"), advance(11 * TIMEOUT));
+    }
+
+    @Test
+    public void testEntriesOfOneSlotExpireIndependently() {
+        // the wheel has TIMEOUT / TICK + 2 slots, so these deadlines share a slot in different turns
+        wheel.touch("early", 0);
+        wheel.touch("late", TIMEOUT + 2 * TICK);
+        assertEquals(Collections.singletonList("early"), advance(TIMEOUT + 2 * TICK));
+        assertTrue(advance(2 * TIMEOUT + TICK).isEmpty());
+        assertEquals(Collections.singletonList("late"), advance(2 * TIMEOUT + 2 * TICK));
+    }
+    // CHECKSTYLE.ON: MagicNumber
+
+    private List<String> advance(long now) {
+        List<String> expired = new ArrayList<>();
+        wheel.advance(now, expired::add);
+        return expired;
+    }
+}
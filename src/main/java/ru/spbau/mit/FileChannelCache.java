@@ -0,0 +1,164 @@
+package ru.spbau.mit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Open file channels shared by the uploads of a file, so that serving a request
+ * does not open and close the file. The channels are opened for reading and only used with positional reads,
+ * so concurrent users do not interfere.
+ *
+ * A channel stays open while it is acquired; of the channels that are not, the least recently used
+ * are closed as soon as more than the given number of channels are open.
+ * A channel closed by the interruption of a thread using it is replaced by the next acquire.
+ */
+class FileChannelCache implements Closeable {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final int maxOpenChannels;
+    private final Map<Integer, CachedChannel> channels = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+    private boolean closed = false;
+
+    FileChannelCache(int maxOpenChannels) {
+        this.maxOpenChannels = maxOpenChannels;
+    }
+
+    /**
+     * Channel of a file, it has to be released with {@link #close} and must not be closed directly.
+     */
+    public final class Handle implements Closeable {
+        private final CachedChannel cached;
+        private boolean released = false;
+
+        private Handle(CachedChannel cached) {
+            this.cached = cached;
+        }
+
+        public FileChannel channel() {
+            return cached.channel;
+        }
+
+        @Override
+        public void close() throws IOException {
+            boolean closeChannel;
+            synchronized (FileChannelCache.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                cached.references--;
+                closeChannel = cached.retired && cached.references == 0;
+            }
+            if (closeChannel) {
+                cached.channel.close();
+            } else {
+                closeIdle();
+            }
+        }
+    }
+
+    public Handle acquire(int fileId, Path path) throws IOException {
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("File channel cache is closed");
+            }
+            CachedChannel cached = channels.get(fileId);
+            if (isUsable(cached, path)) {
+                cached.references++;
+                return new Handle(cached);
+            }
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        CachedChannel opened = new CachedChannel(path, channel);
+        CachedChannel replaced;
+        boolean closeReplaced;
+        Handle handle;
+        synchronized (this) {
+            CachedChannel cached = channels.get(fileId);
+            if (closed) {
+                channel.close();
+                throw new IOException("File channel cache is closed");
+            }
+            if (isUsable(cached, path)) {
+                channel.close(); // the file has been opened concurrently by another request
+                cached.references++;
+                return new Handle(cached);
+            }
+            opened.references++;
+            handle = new Handle(opened);
+            replaced = channels.put(fileId, opened);
+            if (replaced != null) {
+                replaced.retired = true; // otherwise closed when its last user releases it
+            }
+            closeReplaced = replaced != null && replaced.references == 0;
+        }
+        if (closeReplaced) {
+            replaced.channel.close();
+        }
+        closeIdle();
+        return handle;
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<CachedChannel> closing;
+        synchronized (this) {
+            closed = true;
+            closing = new ArrayList<>(channels.values());
+            channels.clear();
+        }
+        for (CachedChannel cached : closing) {
+            cached.channel.close();
+        }
+    }
+
+    /**
+     * @return whether the cached channel can be shared, it is closed if a thread using it has been interrupted
+     */
+    private static boolean isUsable(CachedChannel cached, Path path) {
+        return cached != null && cached.path.equals(path) && cached.channel.isOpen();
+    }
+
+    /**
+     * Closes the least recently used channels nobody uses while there are more than the limit.
+     */
+    private void closeIdle() throws IOException {
+        List<CachedChannel> closing = new ArrayList<>();
+        synchronized (this) {
+            int openCount = channels.size();
+            Iterator<CachedChannel> iterator = channels.values().iterator();
+            while (openCount > maxOpenChannels && iterator.hasNext()) {
+                CachedChannel cached = iterator.next();
+                if (cached.references == 0) {
+                    iterator.remove();
+                    closing.add(cached);
+                    openCount--;
+                }
+            }
+        }
+        for (CachedChannel cached : closing) {
+            cached.channel.close();
+        }
+    }
+
+    private static final class CachedChannel {
+        private final Path path;
+        private final FileChannel channel;
+        private int references = 0;
+        private boolean retired = false;
+
+        private CachedChannel(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package ru.spbau.mit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileChannelCacheTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testChannelSharedAndKeptOpen() throws IOException {
+        Path path = temporaryFolder.newFile().toPath();
+        try (FileChannelCache cache = new FileChannelCache(1)) {
+            FileChannelCache.Handle first = cache.acquire(0, path);
+            FileChannelCache.Handle second = cache.acquire(0, path);
+            assertSame(first.channel(), second.channel());
+            first.close();
+            first.close(); // releasing twice does not release the other handle
+            assertTrue(second.channel().isOpen());
+            second.close();
+            assertTrue(second.channel().isOpen());
+            try (FileChannelCache.Handle third = cache.acquire(0, path)) {
+                assertSame(second.channel(), third.channel());
+            }
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedChannelClosed() throws IOException {
+        Path[] paths = {temporaryFolder.newFile().toPath(), temporaryFolder.newFile().toPath(),
+                temporaryFolder.newFile().toPath()};
+        try (FileChannelCache cache = new FileChannelCache(2)) {
+            FileChannel[] channels = new FileChannel[paths.length];
+            for (int i = 0; i < 2; i++) {
+                try (FileChannelCache.Handle handle = cache.acquire(i, paths[i])) {
+                    channels[i] = handle.channel();
+                }
+            }
+            cache.acquire(0, paths[0]).close(); // now the file 1 is the least recently used
+            try (FileChannelCache.Handle handle = cache.acquire(2, paths[2])) {
+                channels[2] = handle.channel();
+            }
+            assertTrue(channels[0].isOpen());
+            assertFalse(channels[1].isOpen());
+            assertTrue(channels[2].isOpen());
+        }
+    }
+
+    @Test
+    public void testAcquiredChannelNotClosedOverLimit() throws IOException {
+        Path firstPath = temporaryFolder.newFile().toPath();
+        Path secondPath = temporaryFolder.newFile().toPath();
+        try (FileChannelCache cache = new FileChannelCache(1)) {
+            FileChannelCache.Handle first = cache.acquire(0, firstPath);
+            FileChannel second;
+            try (FileChannelCache.Handle handle = cache.acquire(1, secondPath)) {
+                second = handle.channel();
+                assertTrue(first.channel().isOpen());
+            }
+            assertTrue(first.channel().isOpen());
+            assertFalse(second.isOpen());
+            first.close();
+        }
+    }
+
+    @Test
+    public void testClosedChannelReplaced() throws IOException {
+        Path path = temporaryFolder.newFile().toPath();
+        try (FileChannelCache cache = new FileChannelCache(1)) {
+            FileChannelCache.Handle interrupted = cache.acquire(0, path);
+            interrupted.channel().close(); // as an interrupted thread would
+            try (FileChannelCache.Handle handle = cache.acquire(0, path)) {
+                assertNotSame(interrupted.channel(), handle.channel());
+                assertTrue(handle.channel().isOpen());
+                interrupted.close();
+                assertTrue(handle.channel().isOpen());
+            }
+        }
+    }
+
+    @Test
+    public void testRetiredChannelClosedByLastRelease() throws IOException {
+        Path oldPath = temporaryFolder.newFile().toPath();
+        Path newPath = temporaryFolder.newFile().toPath();
+        try (FileChannelCache cache = new FileChannelCache(1)) {
+            FileChannelCache.Handle oldHandle = cache.acquire(0, oldPath);
+            FileChannelCache.Handle newHandle = cache.acquire(0, newPath);
+            assertNotSame(oldHandle.channel(), newHandle.channel());
+            assertTrue(oldHandle.channel().isOpen());
+            oldHandle.close();
+            assertFalse(oldHandle.channel().isOpen());
+            assertTrue(newHandle.channel().isOpen());
+            newHandle.close();
+        }
+    }
+
+    @Test
+    public void testCloseClosesChannels() throws IOException {
+        Path path = temporaryFolder.newFile().toPath();
+        FileChannelCache cache = new FileChannelCache(1);
+        FileChannel channel;
+        try (FileChannelCache.Handle handle = cache.acquire(0, path)) {
+            channel = handle.channel();
+        }
+        cache.close();
+        assertFalse(channel.isOpen());
+        try {
+            cache.acquire(0, path);
+            fail("Acquired from a closed cache");
+        } catch (IOException ignored) {
+        }
+    }
+}
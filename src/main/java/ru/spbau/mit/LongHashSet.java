@@ -0,0 +1,153 @@
+package ru.spbau.mit;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Set of non-negative longs in an open-addressing table with linear probing, without boxing.
+ * Not thread-safe.
+ */
+class LongHashSet {
+    private static final long EMPTY = -1;
+    private static final int MIN_CAPACITY = 4;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+    private static final int LONG_BITS = 64;
+    private static final int SHRINK_LOAD_DIVISOR = 8;
+
+    private long[] table;
+    private int shift;
+    private int size = 0;
+
+    LongHashSet() {
+        allocate(MIN_CAPACITY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(long key) {
+        return key >= 0 && table[find(key)] == key;
+    }
+
+    /**
+     * @return true if the key has not been present before
+     */
+    public boolean add(long key) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative key: " + key);
+        }
+        int index = find(key);
+        if (table[index] == key) {
+            return false;
+        }
+        table[index] = key;
+        size++;
+        if (2 * size > table.length) {
+            rehash(2 * table.length);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the key has been present
+     */
+    public boolean remove(long key) {
+        if (key < 0) {
+            return false;
+        }
+        int index = find(key);
+        if (table[index] != key) {
+            return false;
+        }
+        int mask = table.length - 1;
+        // backward shift: move up the following keys that can not be found past the hole otherwise
+        for (int next = (index + 1) & mask; table[next] != EMPTY; next = (next + 1) & mask) {
+            int home = slot(table[next]);
+            if (((next - home) & mask) >= ((next - index) & mask)) {
+                table[index] = table[next];
+                index = next;
+            }
+        }
+        table[index] = EMPTY;
+        size--;
+        if (table.length > MIN_CAPACITY && SHRINK_LOAD_DIVISOR * size < table.length) {
+            rehash(table.length / 2);
+        }
+        return true;
+    }
+
+    public long[] toArray() {
+        long[] keys = new long[size];
+        int count = 0;
+        for (long key : table) {
+            if (key != EMPTY) {
+                keys[count++] = key;
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Picks at most limit keys: starts from a random cell and walks the table with a random odd stride,
+     * which visits every cell of a power of two sized table, so the cost depends on the limit, not on the size.
+     */
+    public long[] sample(int limit, Random random) {
+        if (size <= limit) {
+            long[] keys = toArray();
+            for (int i = keys.length - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                long key = keys[i];
+                keys[i] = keys[j];
+                keys[j] = key;
+            }
+            return keys;
+        }
+        long[] keys = new long[Math.max(limit, 0)];
+        int mask = table.length - 1;
+        int index = random.nextInt(table.length);
+        int stride = random.nextInt(table.length) | 1;
+        for (int count = 0; count < keys.length; index = (index + stride) & mask) {
+            if (table[index] != EMPTY) {
+                keys[count++] = table[index];
+            }
+        }
+        return keys;
+    }
+
+    private int slot(long key) {
+        return (int) ((key * HASH_MULTIPLIER) >>> shift);
+    }
+
+    /**
+     * @return index of the key or of the empty cell where it should be
+     */
+    private int find(long key) {
+        int mask = table.length - 1;
+        int index = slot(key);
+        while (table[index] != EMPTY && table[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void allocate(int capacity) {
+        table = new long[capacity];
+        Arrays.fill(table, EMPTY);
+        shift = LONG_BITS - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private void rehash(int capacity) {
+        long[] oldTable = table;
+        allocate(capacity);
+        for (long key : oldTable) {
+            if (key != EMPTY) {
+                table[find(key)] = key;
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package ru.spbau.mit;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongHashSetTest {
+    // CHECKSTYLE.OFF: MagicNumber
+    @Test
+    public void testMatchesHashSetUnderRandomOperations() {
+        Random random = new Random(1);
+        LongHashSet set = new LongHashSet();
+        Set<Long> expected = new HashSet<>();
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), set.remove(key));
+            } else {
+                assertEquals(expected.add(key), set.add(key));
+            }
+            assertEquals(expected.size(), set.size());
+        }
+        for (long key = 0; key < 2000; key++) {
+            assertEquals(expected.contains(key), set.contains(key));
+        }
+        assertEquals(expected, toSet(set.toArray()));
+    }
+
+    @Test
+    public void testProbeChainsSurviveDeletes() {
+        long[] keys = collidingKeys(64);
+        LongHashSet set = new LongHashSet();
+        for (long key : keys) {
+            assertTrue(set.add(key));
+        }
+        // deleting from the middle of a chain must keep the rest of it reachable
+        for (int i = 0; i < keys.length; i += 3) {
+            assertTrue(set.remove(keys[i]));
+        }
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(i % 3 != 0, set.contains(keys[i]));
+        }
+        for (int i = 0; i < keys.length; i += 3) {
+            assertTrue(set.add(keys[i]));
+        }
+        for (long key : keys) {
+            assertTrue(set.remove(key));
+        }
+        assertTrue(set.isEmpty());
+    }
+
+    @Test
+    public void testGrowAndShrink() {
+        LongHashSet set = new LongHashSet();
+        for (long key = 0; key < 10000; key++) {
+            assertTrue(set.add(key * 7));
+        }
+        assertEquals(10000, set.size());
+        for (long key = 10; key < 10000; key++) {
+            assertTrue(set.remove(key * 7));
+        }
+        assertEquals(10, set.size());
+        for (long key = 0; key < 10000; key++) {
+            assertEquals(key < 10, set.contains(key * 7));
+        }
+        for (long key = 0; key < 10; key++) {
+            assertTrue(set.remove(key * 7));
+        }
+        assertTrue(set.isEmpty());
+        assertEquals(0, set.toArray().length);
+    }
+
+    @Test
+    public void testNegativeKeys() {
+        LongHashSet set = new LongHashSet();
+        assertFalse(set.contains(-1));
+        assertFalse(set.remove(-1));
+        try {
+            set.add(-5);
+            assertTrue("negative key added", false);
+        } catch (IllegalArgumentException ignored) {
+        }
+        assertTrue(set.isEmpty());
+    }
+
+    @Test
+    public void testSample() {
+        Random random = new Random(2);
+        LongHashSet set = new LongHashSet();
+        for (long key = 0; key < 100; key++) {
+            set.add(key);
+        }
+        Set<Long> all = toSet(set.toArray());
+        long[] sample = set.sample(10, random);
+        assertEquals(10, sample.length);
+        Set<Long> sampled = toSet(sample);
+        assertEquals(10, sampled.size());
+        assertTrue(all.containsAll(sampled));
+        assertEquals(all, toSet(set.sample(100, random)));
+        assertEquals(all, toSet(set.sample(1000, random)));
+        assertEquals(0, set.sample(0, random).length);
+    }
+
+    /**
+     * Keys whose hashes differ only in the low bits, so they share the home slot at any capacity.
+     */
+    private static long[] collidingKeys(int count) {
+        long multiplier = 0x9E3779B97F4A7C15L;
+        long inverse = multiplier;
+        for (int i = 0; i < 5; i++) {
+            inverse *= 2 - multiplier * inverse;
+        }
+        long[] keys = new long[count];
+        for (int i = 0, hash = 0; i < count; hash++) {
+            long key = hash * inverse;
+            if (key >= 0) {
+                keys[i++] = key;
+            }
+        }
+        return keys;
+    }
+    // CHECKSTYLE.ON: MagicNumber
+
+    private static Set<Long> toSet(long[] keys) {
+        Set<Long> set = new HashSet<>();
+        Arrays.stream(keys).forEach(set::add);
+        return set;
+    }
+}
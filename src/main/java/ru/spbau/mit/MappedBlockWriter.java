@@ -0,0 +1,72 @@
+package ru.spbau.mit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Maps the file in windows of several parts and reads blocks from the socket straight into the mapping,
+ * so received data is never copied through the heap. Windows are part-aligned, so a block never
+ * crosses a window border. Only {@link #MAX_MAPPED_WINDOWS} least recently used windows stay mapped.
+ */
+class MappedBlockWriter implements BlockWriter {
+    private static final long WINDOW_SIZE = 4L * ClientProtocol.PART_SIZE;
+    private static final int MAX_MAPPED_WINDOWS = 8;
+
+    private final FileChannel file;
+    private final long fileSize;
+    private final Map<Long, MappedByteBuffer> windows = new LinkedHashMap<>(MAX_MAPPED_WINDOWS, 1, true);
+
+    MappedBlockWriter(FileChannel file, long fileSize) {
+        this.file = file;
+        this.fileSize = fileSize;
+    }
+
+    @Override
+    public ByteBuffer receive(ReadableByteChannel input, long position, int length,
+                              ByteBuffer buffer) throws IOException {
+        ByteBuffer block = getWindow(position / WINDOW_SIZE).duplicate();
+        int offset = (int) (position % WINDOW_SIZE);
+        block.limit(offset + length);
+        block.position(offset);
+        BlockWriter.readFully(input, block);
+        block.position(offset);
+        return block.asReadOnlyBuffer();
+    }
+
+    @Override
+    public void flush(long position, int length) throws IOException {
+        getWindow(position / WINDOW_SIZE).force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (windows) {
+            for (MappedByteBuffer window : windows.values()) {
+                window.force();
+            }
+            windows.clear();
+        }
+    }
+
+    private MappedByteBuffer getWindow(long index) throws IOException {
+        synchronized (windows) {
+            MappedByteBuffer window = windows.get(index);
+            if (window == null) {
+                if (windows.size() >= MAX_MAPPED_WINDOWS) {
+                    Map.Entry<Long, MappedByteBuffer> eldest = windows.entrySet().iterator().next();
+                    eldest.getValue().force();
+                    windows.remove(eldest.getKey());
+                }
+                long start = index * WINDOW_SIZE;
+                window = file.map(FileChannel.MapMode.READ_WRITE, start, Math.min(WINDOW_SIZE, fileSize - start));
+                windows.put(index, window);
+            }
+            return window;
+        }
+    }
+}
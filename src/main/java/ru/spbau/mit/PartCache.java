@@ -0,0 +1,277 @@
+package ru.spbau.mit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Seeder cache of recently requested parts, so that a part many peers ask for is read from disk once.
+ * Parts are evicted in least recently used order to keep their total size within the budget.
+ * Concurrent requests for a part that is not cached wait for a single load instead of reading it each.
+ *
+ * Parts are kept in direct buffers: they are written to sockets as they are,
+ * without the temporary direct copy a heap buffer would need.
+ * Every part takes a buffer of the same size, and the buffers of evicted parts are reused for the next loads
+ * once nobody is sending from them, so that a busy seeder does not allocate a buffer for every miss.
+ * The parts of a file are only served once they are complete, so a cached part only changes
+ * when its file id is given to another file, then the file has to be invalidated.
+ */
+class PartCache {
+    private static final int ID_BITS = 32;
+    private static final long ID_MASK = (1L << ID_BITS) - 1;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final int bufferSize;
+    private final Map<Long, CachedPart> parts = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+    private final Map<Long, CompletableFuture<Void>> loadingParts = new ConcurrentHashMap<>();
+    private final Deque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+    private long budget;
+    private long usedBytes = 0;
+    // incremented by every invalidation, a part loaded before one is not cached
+    private long invalidationCount = 0;
+
+    interface Loader {
+        /**
+         * Reads the part into the buffer, filling it up.
+         */
+        void load(ByteBuffer buffer) throws IOException;
+    }
+
+    /**
+     * Part taken from the cache, it has to be released with {@link #close} after it has been sent.
+     */
+    public final class Handle implements Closeable {
+        private final CachedPart cached;
+        private final ByteBuffer part;
+        private boolean released = false;
+
+        private Handle(CachedPart cached) {
+            this.cached = cached;
+            part = cached.buffer.asReadOnlyBuffer();
+        }
+
+        /**
+         * @return read-only view of the part
+         */
+        public ByteBuffer part() {
+            return part;
+        }
+
+        @Override
+        public void close() {
+            synchronized (PartCache.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                cached.references--;
+                if (cached.evicted && cached.references == 0) {
+                    recycle(cached.buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param bufferSize size of the largest part
+     */
+    PartCache(long budget, int bufferSize) {
+        this.budget = budget;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Changes the budget, evicting parts if it is now exceeded.
+     * A budget smaller than a buffer disables the cache, as not even one part fits in it.
+     */
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        evict();
+        while (!freeBuffers.isEmpty() && usedBytes + (long) freeBuffers.size() * bufferSize > budget) {
+            freeBuffers.pop();
+        }
+    }
+
+    /**
+     * Drops the cached parts of the file, including the ones being loaded.
+     * The parts being sent are recycled once they are released.
+     */
+    public synchronized void invalidateFile(int fileId) {
+        invalidationCount++;
+        Iterator<Map.Entry<Long, CachedPart>> iterator = parts.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, CachedPart> part = iterator.next();
+            if ((int) (part.getKey() >>> ID_BITS) == fileId) {
+                iterator.remove();
+                usedBytes -= bufferSize;
+                retire(part.getValue());
+            }
+        }
+    }
+
+    public synchronized boolean isEnabled() {
+        return budget >= bufferSize;
+    }
+
+    /**
+     * @return the part, loaded with the loader if it is not cached
+     */
+    public Handle get(int fileId, int partId, int partSize, Loader loader) throws IOException {
+        long key = ((long) fileId << ID_BITS) | (partId & ID_MASK);
+        while (true) {
+            Handle cachedPart = acquireCached(key);
+            if (cachedPart != null) {
+                hitCount.incrementAndGet();
+                return cachedPart;
+            }
+            CompletableFuture<Void> loading = new CompletableFuture<>();
+            CompletableFuture<Void> runningLoad = loadingParts.putIfAbsent(key, loading);
+            if (runningLoad != null) {
+                await(runningLoad); // then taken from the cache, unless it has already been evicted
+                continue;
+            }
+            try {
+                cachedPart = acquireCached(key); // it may have been loaded since the first look
+                if (cachedPart != null) {
+                    hitCount.incrementAndGet();
+                    return cachedPart;
+                }
+                missCount.incrementAndGet();
+                final long loadInvalidationCount = getInvalidationCount();
+                ByteBuffer buffer = allocate();
+                buffer.limit(partSize);
+                try {
+                    loader.load(buffer);
+                } catch (IOException | RuntimeException e) {
+                    synchronized (this) {
+                        recycle(buffer);
+                    }
+                    throw e;
+                }
+                buffer.flip();
+                return put(key, buffer, loadInvalidationCount);
+            } catch (IOException | RuntimeException e) {
+                loading.completeExceptionally(e);
+                throw e;
+            } finally {
+                loadingParts.remove(key);
+                loading.complete(null);
+            }
+        }
+    }
+
+    /**
+     * @return share of the requests that have not read the part from disk, 0 if there have been none
+     */
+    public double getHitRatio() {
+        long hits = hitCount.get();
+        long requests = hits + missCount.get();
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    private synchronized long getInvalidationCount() {
+        return invalidationCount;
+    }
+
+    private synchronized Handle acquireCached(long key) {
+        CachedPart cached = parts.get(key);
+        if (cached == null) {
+            return null;
+        }
+        cached.references++;
+        return new Handle(cached);
+    }
+
+    private synchronized ByteBuffer allocate() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Caches the loaded part and takes it; it is only taken if the budget has become smaller than a buffer
+     * or a file has been invalidated since the load started.
+     */
+    private synchronized Handle put(long key, ByteBuffer buffer, long loadInvalidationCount) {
+        CachedPart cached = new CachedPart(buffer);
+        cached.references++;
+        if (bufferSize > budget || invalidationCount != loadInvalidationCount) {
+            cached.evicted = true; // recycled as soon as it is released
+            return new Handle(cached);
+        }
+        CachedPart oldPart = parts.put(key, cached);
+        if (oldPart != null) {
+            usedBytes -= bufferSize;
+            retire(oldPart);
+        }
+        usedBytes += bufferSize;
+        evict();
+        return new Handle(cached);
+    }
+
+    private void evict() {
+        Iterator<CachedPart> iterator = parts.values().iterator();
+        while (usedBytes > budget && iterator.hasNext()) {
+            CachedPart cached = iterator.next();
+            iterator.remove();
+            usedBytes -= bufferSize;
+            retire(cached);
+        }
+    }
+
+    private void retire(CachedPart cached) {
+        cached.evicted = true;
+        if (cached.references == 0) {
+            recycle(cached.buffer);
+        }
+    }
+
+    /**
+     * Keeps the buffer for the next load if the cached parts and the free buffers stay within the budget.
+     */
+    private void recycle(ByteBuffer buffer) {
+        if (usedBytes + (long) (freeBuffers.size() + 1) * bufferSize <= budget) {
+            freeBuffers.push(buffer);
+        }
+    }
+
+    private static void await(CompletableFuture<Void> loading) throws IOException {
+        try {
+            loading.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static final class CachedPart {
+        private final ByteBuffer buffer;
+        private int references = 0;
+        private boolean evicted = false;
+
+        private CachedPart(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package ru.spbau.mit;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class PartCacheTest {
+    private static final int BUFFER_SIZE = 16;
+    private static final int CACHED_PARTS = 2;
+    private static final double DELTA = 1e-9;
+
+    private final PartCache cache = new PartCache(CACHED_PARTS * BUFFER_SIZE, BUFFER_SIZE);
+    private final List<ByteBuffer> loadedBuffers = new ArrayList<>();
+
+    // CHECKSTYLE.OFF: MagicNumber
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws IOException {
+        assertEquals(1, read(1, 0, 1));
+        assertEquals(2, read(1, 1, 2));
+        assertEquals(1, read(1, 0, 10));
+        assertEquals(3, read(1, 2, 3));
+        assertEquals(CACHED_PARTS * BUFFER_SIZE, cache.getUsedBytes());
+        assertEquals(3, loadedBuffers.size());
+
+        assertEquals(1, read(1, 0, 10));
+        assertEquals(3, read(1, 2, 30));
+        assertEquals("the least recently used part has been evicted", 20, read(1, 1, 20));
+        assertEquals(4, loadedBuffers.size());
+        assertEquals(CACHED_PARTS * BUFFER_SIZE, cache.getUsedBytes());
+        assertEquals(3.0 / 7, cache.getHitRatio(), DELTA);
+    }
+
+    @Test
+    public void testBufferReusedAfterRecycle() throws IOException {
+        try (PartCache.Handle part = cache.get(1, 0, BUFFER_SIZE, filler(1))) {
+            cache.invalidateFile(1);
+            assertEquals(0, cache.getUsedBytes());
+            assertEquals(2, read(2, 0, 2));
+            assertNotSame("the buffer being sent is not reused", loadedBuffers.get(0), loadedBuffers.get(1));
+            assertEquals(1, part.part().get(0));
+        }
+        assertEquals(3, read(2, 1, 3));
+        assertSame(loadedBuffers.get(0), loadedBuffers.get(2));
+        assertEquals(3, loadedBuffers.size());
+    }
+
+    @Test
+    public void testInvalidatedFileReloaded() throws IOException {
+        assertEquals(1, read(1, 0, 1));
+        assertEquals(2, read(2, 0, 2));
+        cache.invalidateFile(1);
+        assertEquals(10, read(1, 0, 10));
+        assertEquals("the parts of the other files are kept", 2, read(2, 0, 20));
+        assertEquals(3, loadedBuffers.size());
+    }
+
+    @Test
+    public void testPartLoadedBeforeInvalidationNotCached() throws IOException {
+        PartCache.Loader invalidatingLoader = buffer -> {
+            cache.invalidateFile(1);
+            filler(1).load(buffer);
+        };
+        try (PartCache.Handle part = cache.get(1, 0, BUFFER_SIZE, invalidatingLoader)) {
+            assertEquals(1, part.part().get(0));
+        }
+        assertEquals(0, cache.getUsedBytes());
+        assertEquals(10, read(1, 0, 10));
+    }
+    // CHECKSTYLE.ON: MagicNumber
+
+    /**
+     * @return first byte of the part, loaded filled with the value if it is not cached
+     */
+    private byte read(int fileId, int partId, int value) throws IOException {
+        try (PartCache.Handle part = cache.get(fileId, partId, BUFFER_SIZE, filler(value))) {
+            assertEquals(BUFFER_SIZE, part.part().remaining());
+            return part.part().get(0);
+        }
+    }
+
+    private PartCache.Loader filler(int value) {
+        return buffer -> {
+            loadedBuffers.add(buffer);
+            while (buffer.hasRemaining()) {
+                buffer.put((byte) value);
+            }
+        };
+    }
+}
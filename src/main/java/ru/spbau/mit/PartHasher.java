@@ -0,0 +1,97 @@
+package ru.spbau.mit;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes SHA-256 hashes of file parts. Parts of a file are hashed in parallel on the common fork-join pool.
+ */
+final class PartHasher {
+    public static final int HASH_LENGTH = 32;
+    private static final String ALGORITHM = "SHA-256";
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private PartHasher() {
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static byte[][] hashParts(Path path, long size) throws IOException {
+        int partCount = (int) Math.ceil(1.0 * size / ClientProtocol.PART_SIZE);
+        byte[][] hashes = new byte[partCount][];
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            ForkJoinPool.commonPool().invoke(new HashTask(file, size, hashes, 0, partCount));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return hashes;
+    }
+
+    private static final class HashTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient FileChannel file;
+        private final long size;
+        private final byte[][] hashes;
+        private final int fromPart;
+        private final int toPart;
+
+        private HashTask(FileChannel file, long size, byte[][] hashes, int fromPart, int toPart) {
+            this.file = file;
+            this.size = size;
+            this.hashes = hashes;
+            this.fromPart = fromPart;
+            this.toPart = toPart;
+        }
+
+        @Override
+        protected void compute() {
+            if (toPart - fromPart > 1) {
+                int middle = (fromPart + toPart) / 2;
+                invokeAll(new HashTask(file, size, hashes, fromPart, middle),
+                        new HashTask(file, size, hashes, middle, toPart));
+                return;
+            }
+            if (fromPart < toPart) {
+                try {
+                    hashes[fromPart] = hashPart(fromPart);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        private byte[] hashPart(int partId) throws IOException {
+            MessageDigest digest = newDigest();
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            long position = (long) partId * ClientProtocol.PART_SIZE;
+            long end = Math.min(size, position + ClientProtocol.PART_SIZE);
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = file.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("File is shorter than " + size + " bytes");
+                }
+                position += read;
+                buffer.flip();
+                digest.update(buffer);
+            }
+            return digest.digest();
+        }
+    }
+}
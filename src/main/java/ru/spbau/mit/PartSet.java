@@ -0,0 +1,113 @@
+package ru.spbau.mit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe set of part ids of one file, stored as a bitset with a maintained number of present parts.
+ * Parts can only be added: a downloaded part never disappears.
+ */
+class PartSet {
+    private static final int BITS_IN_WORD = 64;
+    private static final int BITS_IN_BYTE = 8;
+
+    private final int partCount;
+    private final AtomicLongArray words;
+    private final AtomicInteger presentCount = new AtomicInteger();
+
+    PartSet(int partCount) {
+        this.partCount = partCount;
+        words = new AtomicLongArray((partCount + BITS_IN_WORD - 1) / BITS_IN_WORD);
+    }
+
+    PartSet(int partCount, boolean full) {
+        this(partCount);
+        if (full) {
+            for (int i = 0; i < partCount; i++) {
+                add(i);
+            }
+        }
+    }
+
+    /**
+     * Bitmap format: part i is stored in bit (7 - i % 8) of byte i / 8, unused bits are zero.
+     */
+    static PartSet fromBitmap(int partCount, byte[] bitmap) {
+        PartSet set = new PartSet(partCount);
+        for (int i = 0; i < partCount; i++) {
+            if ((bitmap[i / BITS_IN_BYTE] & (1 << (BITS_IN_BYTE - 1 - i % BITS_IN_BYTE))) != 0) {
+                set.add(i);
+            }
+        }
+        return set;
+    }
+
+    static int getBitmapLength(int partCount) {
+        return (partCount + BITS_IN_BYTE - 1) / BITS_IN_BYTE;
+    }
+
+    public int partCount() {
+        return partCount;
+    }
+
+    public int presentCount() {
+        return presentCount.get();
+    }
+
+    public boolean isFull() {
+        return presentCount.get() == partCount;
+    }
+
+    public boolean contains(int partId) {
+        return (words.get(partId / BITS_IN_WORD) & (1L << (partId % BITS_IN_WORD))) != 0;
+    }
+
+    /**
+     * @return true if the part has not been present before
+     */
+    public boolean add(int partId) {
+        if (partId < 0 || partId >= partCount) {
+            throw new IndexOutOfBoundsException("Part " + partId + " of " + partCount);
+        }
+        int index = partId / BITS_IN_WORD;
+        long mask = 1L << (partId % BITS_IN_WORD);
+        while (true) {
+            long word = words.get(index);
+            if ((word & mask) != 0) {
+                return false;
+            }
+            if (words.compareAndSet(index, word, word | mask)) {
+                presentCount.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the first present part with id not less than fromPartId, or -1 if there is none
+     */
+    public int nextPresent(int fromPartId) {
+        if (fromPartId >= partCount) {
+            return -1;
+        }
+        int index = fromPartId / BITS_IN_WORD;
+        long word = words.get(index) & (-1L << (fromPartId % BITS_IN_WORD));
+        while (true) {
+            if (word != 0) {
+                return index * BITS_IN_WORD + Long.numberOfTrailingZeros(word);
+            }
+            if (++index == words.length()) {
+                return -1;
+            }
+            word = words.get(index);
+        }
+    }
+
+    public byte[] toBitmap() {
+        byte[] bitmap = new byte[getBitmapLength(partCount)];
+        for (int i = nextPresent(0); i >= 0; i = nextPresent(i + 1)) {
+            bitmap[i / BITS_IN_BYTE] |= 1 << (BITS_IN_BYTE - 1 - i % BITS_IN_BYTE);
+        }
+        return bitmap;
+    }
+}
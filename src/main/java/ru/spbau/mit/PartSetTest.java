@@ -0,0 +1,95 @@
+package ru.spbau.mit;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PartSetTest {
+    // CHECKSTYLE.OFF: MagicNumber
+    private static final int[] PART_COUNTS = {0, 1, 7, 8, 9, 63, 64, 65, 130};
+
+    @Test
+    public void testBitmapLayout() {
+        PartSet parts = new PartSet(10);
+        parts.add(0);
+        parts.add(7);
+        parts.add(9);
+        assertArrayEquals(new byte[] {(byte) 0x81, 0x40}, parts.toBitmap());
+        assertEquals(2, PartSet.getBitmapLength(9));
+        assertEquals(1, PartSet.getBitmapLength(8));
+        assertEquals(0, PartSet.getBitmapLength(0));
+    }
+
+    @Test
+    public void testBitmapRoundTrip() {
+        Random random = new Random(1);
+        for (int partCount : PART_COUNTS) {
+            PartSet parts = new PartSet(partCount);
+            for (int i = 0; i < partCount; i++) {
+                if (random.nextBoolean()) {
+                    parts.add(i);
+                }
+            }
+            byte[] bitmap = parts.toBitmap();
+            assertEquals(PartSet.getBitmapLength(partCount), bitmap.length);
+            PartSet restored = PartSet.fromBitmap(partCount, bitmap);
+            assertEquals(presentParts(parts), presentParts(restored));
+            assertEquals(parts.presentCount(), restored.presentCount());
+            assertArrayEquals(bitmap, restored.toBitmap());
+        }
+    }
+
+    @Test
+    public void testFull() {
+        for (int partCount : PART_COUNTS) {
+            PartSet parts = new PartSet(partCount, true);
+            assertTrue(parts.isFull());
+            assertEquals(partCount, parts.presentCount());
+            PartSet restored = PartSet.fromBitmap(partCount, parts.toBitmap());
+            assertTrue(restored.isFull());
+        }
+        assertFalse(new PartSet(1, false).isFull());
+    }
+
+    @Test
+    public void testAddOnce() {
+        PartSet parts = new PartSet(100);
+        assertTrue(parts.add(64));
+        assertFalse(parts.add(64));
+        assertEquals(1, parts.presentCount());
+        assertTrue(parts.contains(64));
+        assertFalse(parts.contains(63));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testAddOutOfRange() {
+        new PartSet(10).add(10);
+    }
+
+    @Test
+    public void testNextPresentAcrossWords() {
+        PartSet parts = new PartSet(200);
+        List<Integer> expected = Arrays.asList(0, 63, 64, 127, 199);
+        expected.forEach(parts::add);
+        assertEquals(expected, presentParts(parts));
+        assertEquals(-1, parts.nextPresent(200));
+        assertEquals(-1, new PartSet(200).nextPresent(0));
+    }
+    // CHECKSTYLE.ON: MagicNumber
+
+    private static List<Integer> presentParts(PartSet parts) {
+        List<Integer> present = new ArrayList<>();
+        for (int i = parts.nextPresent(0); i >= 0; i = parts.nextPresent(i + 1)) {
+            present.add(i);
+        }
+        return present;
+    }
+}
@@ -0,0 +1,197 @@
+package ru.spbau.mit;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Tracker registry of seeding peers.
+ * A peer is its ip and port packed into a long (see {@link #pack}); the sources of each file are kept
+ * in a primitive {@link LongHashSet}, and the sorted file ids of each peer serve as a reverse index,
+ * so updating or removing a peer only touches the files it seeds.
+ */
+class PeerRegistry {
+    private static final int PORT_BITS = 16;
+    private static final int PORT_MASK = (1 << PORT_BITS) - 1;
+    private static final int BYTE_BITS = 8;
+    private static final int BYTE_MASK = 0xFF;
+
+    private final Map<Integer, LongHashSet> fileSources = new HashMap<>();
+    private final Map<Long, Peer> peers = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    static long pack(byte[] ip, int port) {
+        long address = 0;
+        for (int i = 0; i < TrackerProtocol.IP_LENGTH_IN_BYTES; i++) {
+            address = (address << BYTE_BITS) | (ip[i] & BYTE_MASK);
+        }
+        return (address << PORT_BITS) | (port & PORT_MASK);
+    }
+
+    static int unpackIp(long peer) {
+        return (int) (peer >>> PORT_BITS);
+    }
+
+    static int unpackPort(long peer) {
+        return (int) (peer & PORT_MASK);
+    }
+
+    /**
+     * Replaces the files the peer seeds, this is announce number 0 of the peer.
+     *
+     * @param connection connection of the last update, closed when the peer expires
+     */
+    public void update(long peer, int[] fileIds, Closeable connection, long now) {
+        int[] newFileIds = Arrays.stream(fileIds).sorted().distinct().toArray();
+        lock.writeLock().lock();
+        try {
+            Peer oldState = peers.put(peer, new Peer(newFileIds, 0, connection, now));
+            int[] oldFileIds = oldState == null ? new int[0] : oldState.fileIds;
+            for (int fileId : oldFileIds) {
+                if (Arrays.binarySearch(newFileIds, fileId) < 0) {
+                    removeSource(fileId, peer);
+                }
+            }
+            for (int fileId : newFileIds) {
+                if (Arrays.binarySearch(oldFileIds, fileId) < 0) {
+                    fileSources.computeIfAbsent(fileId, id -> new LongHashSet()).add(peer);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies the changes since the previous announce of the peer.
+     * Unchanged files are not touched, so the cost is proportional to the number of changes.
+     *
+     * @return false if the previous announce is not the one with sequence - 1,
+     * then the peer has to replace its files with {@link #update}
+     */
+    public boolean applyDelta(long peer, int sequence, int[] addedIds, int[] removedIds,
+                              Closeable connection, long now) {
+        lock.writeLock().lock();
+        try {
+            Peer state = peers.get(peer);
+            if (state == null || state.sequence + 1 != sequence) {
+                return false;
+            }
+            int[] fileIds = state.fileIds;
+            if (addedIds.length > 0 || removedIds.length > 0) {
+                int[] added = Arrays.stream(addedIds).sorted().distinct()
+                        .filter(id -> Arrays.binarySearch(state.fileIds, id) < 0).toArray();
+                int[] removed = Arrays.stream(removedIds).sorted().distinct()
+                        .filter(id -> Arrays.binarySearch(state.fileIds, id) >= 0).toArray();
+                for (int fileId : added) {
+                    fileSources.computeIfAbsent(fileId, id -> new LongHashSet()).add(peer);
+                }
+                for (int fileId : removed) {
+                    removeSource(fileId, peer);
+                }
+                fileIds = merge(fileIds, added, removed);
+            }
+            peers.put(peer, new Peer(fileIds, sequence, connection, now));
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the peer if it has not been updated since lastAllowedUpdateTime.
+     *
+     * @return connection of the removed peer, or null if the peer has not been removed
+     */
+    public Closeable removeIfExpired(long peer, long lastAllowedUpdateTime) {
+        lock.writeLock().lock();
+        try {
+            Peer state = peers.get(peer);
+            if (state == null || state.lastUpdateTime > lastAllowedUpdateTime) {
+                return null;
+            }
+            peers.remove(peer);
+            for (int fileId : state.fileIds) {
+                removeSource(fileId, peer);
+            }
+            return state.connection;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long[] getSources(int fileId) {
+        lock.readLock().lock();
+        try {
+            LongHashSet sources = fileSources.get(fileId);
+            return sources == null ? new long[0] : sources.toArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return at most limit sources of the file in random order, see {@link LongHashSet#sample}
+     */
+    public long[] sampleSources(int fileId, int limit) {
+        lock.readLock().lock();
+        try {
+            LongHashSet sources = fileSources.get(fileId);
+            return sources == null ? new long[0] : sources.sample(limit, ThreadLocalRandom.current());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return sorted ids: (ids + added) - removed, where added are absent from ids and removed are present in ids
+     */
+    private static int[] merge(int[] ids, int[] added, int[] removed) {
+        int[] result = new int[ids.length + added.length - removed.length];
+        int count = 0;
+        int addedIndex = 0;
+        int removedIndex = 0;
+        for (int id : ids) {
+            while (addedIndex < added.length && added[addedIndex] < id) {
+                result[count++] = added[addedIndex++];
+            }
+            if (removedIndex < removed.length && removed[removedIndex] == id) {
+                removedIndex++;
+            } else {
+                result[count++] = id;
+            }
+        }
+        while (addedIndex < added.length) {
+            result[count++] = added[addedIndex++];
+        }
+        return result;
+    }
+
+    private void removeSource(int fileId, long peer) {
+        LongHashSet sources = fileSources.get(fileId);
+        if (sources != null) {
+            sources.remove(peer);
+            if (sources.isEmpty()) {
+                fileSources.remove(fileId);
+            }
+        }
+    }
+
+    private static final class Peer {
+        private final int[] fileIds; // sorted
+        private final int sequence;
+        private final Closeable connection;
+        private final long lastUpdateTime;
+
+        private Peer(int[] fileIds, int sequence, Closeable connection, long lastUpdateTime) {
+            this.fileIds = fileIds;
+            this.sequence = sequence;
+            this.connection = connection;
+            this.lastUpdateTime = lastUpdateTime;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package ru.spbau.mit;
+
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PeerRegistryTest {
+    // CHECKSTYLE.OFF: MagicNumber
+    private static final long PEER = PeerRegistry.pack(new byte[] {127, 0, 0, 1}, 8081);
+    private static final long OTHER_PEER = PeerRegistry.pack(new byte[] {10, 0, 0, 2}, 8082);
+    private static final int[] NONE = new int[0];
+
+    private final PeerRegistry registry = new PeerRegistry();
+    private final Closeable connection = () -> { };
+
+    @Test
+    public void testPackRoundTrip() {
+        long peer = PeerRegistry.pack(new byte[] {(byte) 192, (byte) 168, 1, (byte) 255}, 65535);
+        assertTrue(peer >= 0);
+        assertEquals(0xC0A801FF, PeerRegistry.unpackIp(peer));
+        assertEquals(65535, PeerRegistry.unpackPort(peer));
+        assertEquals(0x7F000001, PeerRegistry.unpackIp(PEER));
+        assertEquals(8081, PeerRegistry.unpackPort(PEER));
+    }
+
+    @Test
+    public void testUpdateReplacesFiles() {
+        registry.update(PEER, new int[] {1, 2, 2, 3}, connection, 0);
+        registry.update(OTHER_PEER, new int[] {2}, connection, 0);
+        assertArrayEquals(new long[] {PEER}, registry.getSources(1));
+        assertEquals(peers(PEER, OTHER_PEER), peers(registry.getSources(2)));
+        registry.update(PEER, new int[] {3, 4}, connection, 0);
+        assertArrayEquals(new long[0], registry.getSources(1));
+        assertArrayEquals(new long[] {OTHER_PEER}, registry.getSources(2));
+        assertArrayEquals(new long[] {PEER}, registry.getSources(3));
+        assertArrayEquals(new long[] {PEER}, registry.getSources(4));
+    }
+
+    @Test
+    public void testDeltaAddsAndRemovesSources() {
+        registry.update(PEER, new int[] {1, 2}, connection, 0);
+        assertTrue(registry.applyDelta(PEER, 1, new int[] {3, 1}, new int[] {2, 5}, connection, 0));
+        assertArrayEquals(new long[] {PEER}, registry.getSources(1));
+        assertArrayEquals(new long[0], registry.getSources(2));
+        assertArrayEquals(new long[] {PEER}, registry.getSources(3));
+        assertArrayEquals(new long[0], registry.getSources(5));
+        assertTrue(registry.applyDelta(PEER, 2, NONE, NONE, connection, 0));
+        assertTrue(registry.applyDelta(PEER, 3, new int[] {2}, new int[] {1, 3}, connection, 0));
+        assertArrayEquals(new long[0], registry.getSources(1));
+        assertArrayEquals(new long[] {PEER}, registry.getSources(2));
+        assertArrayEquals(new long[0], registry.getSources(3));
+    }
+
+    @Test
+    public void testDeltaSequenceGaps() {
+        assertFalse("unknown peer", registry.applyDelta(PEER, 1, new int[] {1}, NONE, connection, 0));
+        assertArrayEquals(new long[0], registry.getSources(1));
+        registry.update(PEER, new int[] {1}, connection, 0);
+        assertFalse("gap", registry.applyDelta(PEER, 2, new int[] {2}, NONE, connection, 0));
+        assertFalse("announce 0 again", registry.applyDelta(PEER, 0, new int[] {2}, NONE, connection, 0));
+        assertArrayEquals(new long[0], registry.getSources(2));
+        assertTrue(registry.applyDelta(PEER, 1, new int[] {2}, NONE, connection, 0));
+        assertFalse("duplicate", registry.applyDelta(PEER, 1, NONE, new int[] {2}, connection, 0));
+        assertArrayEquals(new long[] {PEER}, registry.getSources(2));
+        // a full update restarts the sequence
+        registry.update(PEER, new int[] {1}, connection, 0);
+        assertFalse(registry.applyDelta(PEER, 2, NONE, NONE, connection, 0));
+        assertTrue(registry.applyDelta(PEER, 1, NONE, NONE, connection, 0));
+    }
+
+    @Test
+    public void testRemoveIfExpired() {
+        Closeable lastConnection = () -> { };
+        registry.update(PEER, new int[] {1, 2}, connection, 100);
+        registry.update(OTHER_PEER, new int[] {2}, connection, 100);
+        assertTrue(registry.applyDelta(PEER, 1, NONE, NONE, lastConnection, 200));
+        assertNull(registry.removeIfExpired(PEER, 199));
+        assertSame(connection, registry.removeIfExpired(OTHER_PEER, 199));
+        assertSame(lastConnection, registry.removeIfExpired(PEER, 200));
+        assertNull(registry.removeIfExpired(PEER, 200));
+        assertArrayEquals(new long[0], registry.getSources(1));
+        assertArrayEquals(new long[0], registry.getSources(2));
+        assertFalse(registry.applyDelta(PEER, 2, NONE, NONE, connection, 300));
+    }
+
+    @Test
+    public void testSampleSources() {
+        Set<Long> all = new HashSet<>();
+        for (int port = 1; port <= 100; port++) {
+            long peer = PeerRegistry.pack(new byte[] {10, 0, 0, 1}, port);
+            registry.update(peer, new int[] {1}, connection, 0);
+            all.add(peer);
+        }
+        Set<Long> sampled = peers(registry.sampleSources(1, 10));
+        assertEquals(10, sampled.size());
+        assertTrue(all.containsAll(sampled));
+        assertEquals(all, peers(registry.sampleSources(1, 1000)));
+        assertArrayEquals(new long[0], registry.sampleSources(2, 10));
+    }
+    // CHECKSTYLE.ON: MagicNumber
+
+    private static Set<Long> peers(long... peers) {
+        Set<Long> set = new HashSet<>();
+        Arrays.stream(peers).forEach(set::add);
+        return set;
+    }
+}
@@ -0,0 +1,15 @@
+package ru.spbau.mit;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Decides in which order missing parts of a file are downloaded.
+ */
+public interface PiecePicker {
+    /**
+     * @param availability number of known seeders that have each part
+     * @param wanted       tells whether a part is still missing and is not being downloaded
+     * @return ids of wanted parts that at least one seeder has, in the order they should be requested
+     */
+    int[] order(int[] availability, IntPredicate wanted);
+}
@@ -0,0 +1,57 @@
+package ru.spbau.mit;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PiecePickerTest {
+    private static final int SHUFFLE_ATTEMPTS = 100;
+
+    // CHECKSTYLE.OFF: MagicNumber
+    @Test
+    public void testSequentialOrder() {
+        int[] availability = {1, 0, 3, 2, 1, 5};
+        assertArrayEquals(new int[] {0, 2, 3, 4, 5}, new SequentialPiecePicker().order(availability, id -> true));
+        assertArrayEquals(new int[] {2, 5},
+                new SequentialPiecePicker().order(availability, id -> id != 0 && id != 3 && id != 4));
+    }
+
+    @Test
+    public void testRarestFirstOrder() {
+        int[] availability = {3, 1, 0, 2, 1, 3};
+        int[] order = new RarestFirstPiecePicker().order(availability, id -> id != 5);
+        assertEquals(4, order.length);
+        assertEquals(new HashSet<>(Arrays.asList(1, 4)), new HashSet<>(Arrays.asList(order[0], order[1])));
+        assertEquals(3, order[2]);
+        assertEquals(0, order[3]);
+    }
+
+    @Test
+    public void testRarestFirstTiesShuffled() {
+        int[] availability = {2, 2, 2, 2, 1};
+        PiecePicker picker = new RarestFirstPiecePicker();
+        Set<Integer> firstOfTies = new HashSet<>();
+        for (int i = 0; i < SHUFFLE_ATTEMPTS; i++) {
+            int[] order = picker.order(availability, id -> true);
+            assertEquals(4, order[0]);
+            assertEquals(new HashSet<>(Arrays.asList(0, 1, 2, 3)),
+                    Arrays.stream(order, 1, order.length).boxed().collect(Collectors.toSet()));
+            firstOfTies.add(order[1]);
+        }
+        assertTrue("equally available parts are not always requested in the same order", firstOfTies.size() > 1);
+    }
+
+    @Test
+    public void testNothingToPick() {
+        assertEquals(0, new RarestFirstPiecePicker().order(new int[] {0, 0}, id -> true).length);
+        assertEquals(0, new SequentialPiecePicker().order(new int[] {1, 1}, id -> false).length);
+    }
+    // CHECKSTYLE.ON: MagicNumber
+}
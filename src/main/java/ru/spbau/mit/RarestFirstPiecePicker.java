@@ -0,0 +1,31 @@
+package ru.spbau.mit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+/**
+ * Requests the parts owned by the fewest seeders first, so that rare parts get replicated
+ * before their owners leave. Parts with equal availability are requested in random order,
+ * otherwise every downloader would start from the same part.
+ */
+public class RarestFirstPiecePicker implements PiecePicker {
+    private final Random random = new Random();
+
+    @Override
+    public int[] order(int[] availability, IntPredicate wanted) {
+        List<Integer> parts = new ArrayList<>();
+        for (int partId = 0; partId < availability.length; partId++) {
+            if (availability[partId] > 0 && wanted.test(partId)) {
+                parts.add(partId);
+            }
+        }
+        synchronized (random) {
+            Collections.shuffle(parts, random);
+        }
+        parts.sort((first, second) -> Integer.compare(availability[first], availability[second])); // stable
+        return parts.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
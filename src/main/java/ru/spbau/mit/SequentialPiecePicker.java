@@ -0,0 +1,16 @@
+package ru.spbau.mit;
+
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * Requests parts in ascending order, which is handy for previewing a file while it is downloaded.
+ */
+public class SequentialPiecePicker implements PiecePicker {
+    @Override
+    public int[] order(int[] availability, IntPredicate wanted) {
+        return IntStream.range(0, availability.length)
+                .filter(partId -> availability[partId] > 0 && wanted.test(partId))
+                .toArray();
+    }
+}
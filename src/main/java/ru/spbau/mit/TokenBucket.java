@@ -0,0 +1,85 @@
+package ru.spbau.mit;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket that limits a transfer rate, holding at most a second worth of tokens.
+ *
+ * Instead of the number of tokens the bucket keeps the time when it will be full again,
+ * never earlier than now, moved forward by the cost of every transfer with a single compare-and-set,
+ * so there is no lock. A transfer that finds the bucket more than a second behind waits for the difference,
+ * so at most a second worth of bytes goes through without waiting.
+ * The rate is read on every transfer, so it can be changed at any time.
+ */
+class TokenBucket {
+    private static final long CAPACITY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final LongSupplier rate;
+    private final LongSupplier clock;
+    private final AtomicLong fullTime = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @param rate bytes per second, not positive for no limit
+     */
+    TokenBucket(LongSupplier rate) {
+        this(rate, System::nanoTime);
+    }
+
+    /**
+     * @param clock current time in nanoseconds
+     */
+    TokenBucket(LongSupplier rate, LongSupplier clock) {
+        this.rate = rate;
+        this.clock = clock;
+    }
+
+    /**
+     * Takes the tokens for the transfer of the bytes from every bucket,
+     * waiting until the slowest of them allows it.
+     */
+    static void acquire(long bytes, TokenBucket... buckets) throws InterruptedIOException {
+        long delay = 0;
+        for (TokenBucket bucket : buckets) {
+            delay = Math.max(delay, bucket.reserve(bytes));
+        }
+        if (delay > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+        }
+    }
+
+    /**
+     * Takes the tokens for the transfer of the bytes, possibly going into debt.
+     *
+     * @return nanoseconds to wait before the transfer
+     */
+    public long reserve(long bytes) {
+        long bytesPerSecond = rate.getAsLong();
+        if (bytesPerSecond <= 0) {
+            return 0;
+        }
+        long cost = TimeUnit.SECONDS.toNanos(bytes) / bytesPerSecond;
+        while (true) {
+            long now = clock.getAsLong();
+            long previousFullTime = fullTime.get();
+            long newFullTime = Math.max(previousFullTime, now) + cost;
+            if (fullTime.compareAndSet(previousFullTime, newFullTime)) {
+                return Math.max(0, newFullTime - CAPACITY_NANOS - now);
+            }
+        }
+    }
+
+    /**
+     * @return whether the bucket is full, then it behaves the same as a new one
+     */
+    public boolean isFull() {
+        return fullTime.get() <= clock.getAsLong();
+    }
+}
@@ -0,0 +1,70 @@
+package ru.spbau.mit;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+    private static final long RATE = 1000;
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private long now = 0;
+    private long rate = RATE;
+    private final TokenBucket bucket = new TokenBucket(() -> rate, () -> now);
+
+    @Test
+    public void testBurstBoundedByCapacity() {
+        // CHECKSTYLE.OFF: MagicNumber
+        now = 10 * SECOND; // idle for a long time
+        // CHECKSTYLE.ON: MagicNumber
+        assertEquals(0, bucket.reserve(RATE));
+        assertEquals(SECOND / RATE, bucket.reserve(1));
+    }
+
+    @Test
+    public void testBurstSplitIntoTransfers() {
+        long sent = 0;
+        while (bucket.reserve(1) == 0) {
+            sent++;
+        }
+        assertEquals(RATE, sent);
+    }
+
+    @Test
+    public void testWaitForDebt() {
+        assertEquals(0, bucket.reserve(RATE));
+        assertEquals(SECOND / 2, bucket.reserve(RATE / 2));
+        assertEquals(SECOND, bucket.reserve(RATE / 2));
+    }
+
+    @Test
+    public void testRefillAtRate() {
+        assertEquals(0, bucket.reserve(RATE));
+        now += SECOND / 2;
+        assertEquals(0, bucket.reserve(RATE / 2));
+        assertTrue(bucket.reserve(1) > 0);
+    }
+
+    @Test
+    public void testFull() {
+        assertTrue(bucket.isFull());
+        bucket.reserve(RATE / 2);
+        assertFalse(bucket.isFull());
+        now += SECOND / 2;
+        assertTrue(bucket.isFull());
+    }
+
+    @Test
+    public void testRateChange() {
+        rate = 0;
+        assertEquals(0, bucket.reserve(RATE * RATE));
+        assertTrue(bucket.isFull());
+        rate = RATE * 2;
+        assertEquals(0, bucket.reserve(RATE * 2));
+        assertEquals(SECOND / 2, bucket.reserve(RATE));
+    }
+}
@@ -1,16 +1,28 @@
 package ru.spbau.mit;
 
 import java.io.*;
+import java.net.ConnectException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 
@@ -19,7 +31,33 @@ import java.util.stream.Collectors;
  */
 public class TorrentClient implements Closeable {
     private static final int SERVER_QUERY_DELAY = 1000;
+    private static final int MAX_PARTS_IN_FLIGHT_PER_FILE = 4;
+    private static final int MAX_PARTS_IN_FLIGHT_PER_PEER = 2;
+    private static final int PIPELINED_BLOCKS_PER_CONNECTION = 4;
+    private static final int MAX_BLOCK_BUFFERS = 4 * MAX_PARTS_IN_FLIGHT_PER_FILE;
+    private static final int MAX_OPEN_FILES = 64;
+    private static final int DEFAULT_UPLOAD_SLOTS = 8;
+    private static final int UPLOAD_SLOTS_EVALUATION_PERIOD = 10 * 1000;
+    private static final int THROTTLED_CHUNK_SIZE = ClientProtocol.BLOCK_SIZE;
+    private static final int MAX_SOURCES_PER_FILE = 50;
+    private static final int TRACKER_QUERY_DELAY = 30 * 1000;
+    private static final int MAX_KNOWN_PEERS_PER_FILE = 200;
+    private static final int MAX_PEX_PEERS = 50;
+    private static final int PEX_PEERS_PER_REFRESH = 2;
+    private static final int PEER_REFRESH_DELAY = 5 * 1000;
+    private static final int MAX_SUBSCRIPTIONS_PER_FILE = 16;
+    private static final int SUBSCRIPTION_KEEPALIVE = 10 * 1000;
+    private static final int SUBSCRIPTION_TIMEOUT = 3 * SUBSCRIPTION_KEEPALIVE;
+    private static final int MAX_SUBSCRIBERS = 64;
     private static final String SEEDING_FILES_FILENAME = "seeding_files.cfg";
+    private static final int SEEDING_FILES_MAGIC = 0xF11E_5000;
+    private static final int SEEDING_FILES_VERSION = 1;
+    private static final int SEEDING_FILES_HEADER_SIZE = 8;
+    private static final String JOURNAL_FILENAME = "seeding_files.journal";
+    private static final long JOURNAL_COMPACTION_SIZE = 1024 * 1024;
+    private static final int FILE_ADDED_RECORD = 1;
+    private static final int PART_COMPLETED_RECORD = 2;
+    private static final int PART_COMPLETED_RECORD_SIZE = 9;
 
     private final Path seedingFolder;
     private final String serverIp;
@@ -30,6 +68,43 @@ public class TorrentClient implements Closeable {
     private final ExecutorService executorService = Executors.newCachedThreadPool();
     private final Timer updateTimer = new Timer();
     private final Map<String, Path> filePathByName = new ConcurrentHashMap<>();
+    private final ConnectionPool connectionPool = new ConnectionPool();
+    // a part being downloaded holds one block buffer, this bounds the off-heap memory of all downloads
+    private final BufferPool blockBuffers = new BufferPool(ClientProtocol.BLOCK_SIZE, MAX_BLOCK_BUFFERS);
+    private final PartCache partCache = new PartCache(0, ClientProtocol.PART_SIZE);
+    // files served to peers and the downloaded ones, shared by all the transfers of a file
+    private final FileChannelCache fileChannels = new FileChannelCache(MAX_OPEN_FILES);
+    private final UploadSlots uploadSlots = new UploadSlots(DEFAULT_UPLOAD_SLOTS, UPLOAD_SLOTS_EVALUATION_PERIOD,
+            System.currentTimeMillis());
+    // bandwidth limits in bytes per second, 0 for no limit
+    private volatile long uploadRateLimit = 0;
+    private volatile long peerUploadRateLimit = 0;
+    private volatile long downloadRateLimit = 0;
+    private volatile long peerDownloadRateLimit = 0;
+    private final TokenBucket uploadBucket = new TokenBucket(() -> uploadRateLimit);
+    private final TokenBucket downloadBucket = new TokenBucket(() -> downloadRateLimit);
+    // buckets of the peers downloaded from, the full ones are dropped with the idle connections
+    private final Map<TrackerProtocol.ClientEntry, TokenBucket> peerDownloadBuckets = new ConcurrentHashMap<>();
+    // buckets of the peers uploaded to by address, shared by all the connections of a peer
+    private final Map<InetAddress, TokenBucket> peerUploadBuckets = new ConcurrentHashMap<>();
+    private volatile PiecePicker piecePicker = new RarestFirstPiecePicker();
+    private volatile boolean useMemoryMappedDownloads = false;
+    private final AppendLog journal;
+    // tracker catalog, refreshed with the files added since catalogVersion
+    private final Map<Integer, TrackerProtocol.TrackerFileEntry> catalog = new TreeMap<>();
+    private int catalogVersion = 0;
+    // sorted ids of the last announce applied by the tracker, null if the next announce has to be a full UPDATE
+    private int[] announcedFileIds = null;
+    private int announceSequence = 0;
+    private final Object announceLock = new Object();
+    // sources of all the downloading files, fetched with one batched query and shared by the downloads
+    private Map<Integer, List<TrackerProtocol.ClientEntry>> downloadSources = Collections.emptyMap();
+    private long downloadSourcesTime = 0;
+    private final Object downloadSourcesLock = new Object();
+    // peers of every file learned from the tracker and by peer exchange, the least recently seen first
+    private final Map<Integer, Set<TrackerProtocol.ClientEntry>> knownPeers = new ConcurrentHashMap<>();
+    // peers subscribed to the parts of the seeding files, each served by a thread of its own
+    private final AtomicInteger subscriberCount = new AtomicInteger(0);
 
     public TorrentClient(Path seedingFolder, String serverIp) throws IOException {
         this.serverIp = serverIp;
@@ -42,29 +117,14 @@ public class TorrentClient implements Closeable {
         if (Files.notExists(seedingFilesPath)) {
             Files.createFile(seedingFilesPath);
         }
-        try (DataInputStream stream = new DataInputStream(Files.newInputStream(seedingFilesPath))) {
-            while (true) {
-                try {
-                    int id = stream.readInt();
-                    String path = stream.readUTF();
-                    long size = stream.readLong();
-                    int partCount = getPartCount(size);
-                    boolean[] isPartPresent = new boolean[partCount];
-                    boolean downloaded = true;
-                    for (int i = 0; i < partCount; i++) {
-                        isPartPresent[i] = stream.readBoolean();
-                        if (!isPartPresent[i]) {
-                            downloaded = false;
-                        }
-                    }
-                    ClientFileEntry entry = new ClientFileEntry(id, Paths.get(path), size, isPartPresent);
-                    seedingFiles.put(id, entry);
-                    if (!downloaded) {
-                        downloadingFiles.put(id, entry);
-                    }
-                } catch (EOFException ignored) {
-                    break;
-                }
+        for (ClientFileEntry entry : readFileList()) {
+            seedingFiles.put(entry.id, entry);
+        }
+        journal = new AppendLog(Paths.get(seedingFolder.toString(), JOURNAL_FILENAME), this::applyJournalRecord,
+                this::writeSnapshot, JOURNAL_COMPACTION_SIZE);
+        for (ClientFileEntry entry : seedingFiles.values()) {
+            if (!entry.presentParts.isFull()) {
+                downloadingFiles.put(entry.id, entry);
             }
         }
     }
@@ -73,26 +133,152 @@ public class TorrentClient implements Closeable {
     public void close() throws IOException {
         updateTimer.cancel();
         executorService.shutdownNow();
+        connectionPool.close();
+        fileChannels.close();
         if (serverSocket != null) {
             serverSocket.close();
             serverSocket = null;
         }
+        journal.close();
+    }
 
-        try (DataOutputStream stream = new DataOutputStream(Files.newOutputStream(seedingFilesPath))) {
-            seedingFiles.forEach(((integer, clientFileEntry) -> {
-                try {
-                    stream.writeInt(clientFileEntry.id);
-                    stream.writeUTF(clientFileEntry.path.toString());
-                    stream.writeLong(clientFileEntry.size);
+    //SEEDING FILES LIST
+    // <SEEDING_FILES_MAGIC: Int> <SEEDING_FILES_VERSION: Int> (<file entry>)*
+    // file entry: <id: Int> <path: String> <size: Long> <part hashes as in the hashes query> <bitmap>
+    // the magic is negative, so a list of the first versions, which starts with an id, is told apart;
+    // such a list has no header, no part hashes and a boolean per part instead of the bitmap
+    private List<ClientFileEntry> readFileList() throws IOException {
+        byte[] content = Files.readAllBytes(seedingFilesPath);
+        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(content));
+        if (content.length >= SEEDING_FILES_HEADER_SIZE && stream.readInt() == SEEDING_FILES_MAGIC) {
+            int version = stream.readInt();
+            if (version != SEEDING_FILES_VERSION) {
+                throw new IOException("Unsupported seeding files list version: " + version);
+            }
+            return readFileEntries(stream, true);
+        }
+        return readFileEntries(new DataInputStream(new ByteArrayInputStream(content)), false);
+    }
 
-                    for (boolean b : clientFileEntry.isPartPresent) {
-                        stream.writeBoolean(b);
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
+    /**
+     * Reads the entries up to the end of the stream, failing on any entry that does not fit the layout.
+     */
+    private List<ClientFileEntry> readFileEntries(DataInputStream stream, boolean withHeader) throws IOException {
+        List<ClientFileEntry> entries = new ArrayList<>();
+        while (stream.available() > 0) {
+            ClientFileEntry entry = readFileEntry(stream, withHeader);
+            int partCount = entry.presentParts.partCount();
+            if (entry.id < 0 || entry.partHashes.length != 0 && entry.partHashes.length != partCount) {
+                throw new IOException("Malformed seeding files list entry: " + entry.id);
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private ClientFileEntry readFileEntry(DataInputStream stream) throws IOException {
+        return readFileEntry(stream, true);
+    }
+
+    /**
+     * @param withHeader false for an entry of a list without the header, which has the baseline layout
+     */
+    private ClientFileEntry readFileEntry(DataInputStream stream, boolean withHeader) throws IOException {
+        int id = stream.readInt();
+        String path = stream.readUTF();
+        long size = stream.readLong();
+        if (size < 0) {
+            throw new IOException("Negative file size: " + size);
+        }
+        byte[][] partHashes = withHeader ? TrackerProtocol.readPartHashes(stream) : new byte[0][];
+        int partCount = getPartCount(size);
+        PartSet presentParts;
+        if (withHeader) {
+            byte[] bitmap = new byte[PartSet.getBitmapLength(partCount)];
+            stream.readFully(bitmap);
+            presentParts = PartSet.fromBitmap(partCount, bitmap);
+            if (!Arrays.equals(presentParts.toBitmap(), bitmap)) {
+                throw new IOException("Malformed present parts bitmap");
+            }
+        } else {
+            presentParts = new PartSet(partCount);
+            for (int i = 0; i < partCount; i++) {
+                int present = stream.readByte();
+                if (present != 0 && present != 1) {
+                    throw new IOException("Malformed part flag: " + present);
                 }
-            }));
+                if (present == 1) {
+                    presentParts.add(i);
+                }
+            }
         }
+        return new ClientFileEntry(id, Paths.get(path), size, partHashes, presentParts);
+    }
+
+    private static void writeFileEntry(DataOutputStream stream, ClientFileEntry entry) throws IOException {
+        stream.writeInt(entry.id);
+        stream.writeUTF(entry.path.toString());
+        stream.writeLong(entry.size);
+        TrackerProtocol.writePartHashes(stream, entry.partHashes);
+        stream.write(entry.presentParts.toBitmap());
+    }
+
+    /**
+     * Atomically replaces the seeding files list with the current state.
+     */
+    private void writeSnapshot() throws IOException {
+        Path temporaryPath = Paths.get(seedingFilesPath.toString() + ".tmp");
+        try (FileOutputStream fileStream = new FileOutputStream(temporaryPath.toFile());
+             DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(fileStream))) {
+            stream.writeInt(SEEDING_FILES_MAGIC);
+            stream.writeInt(SEEDING_FILES_VERSION);
+            for (ClientFileEntry entry : seedingFiles.values()) {
+                writeFileEntry(stream, entry);
+            }
+            stream.flush();
+            fileStream.getChannel().force(true);
+        }
+        Files.move(temporaryPath, seedingFilesPath, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //JOURNAL RECORDS
+    // file added: <1: Byte> <file entry as in the seeding files list>
+    // part completed: <2: Byte> <file id: Int> <part id: Int>
+    private void applyJournalRecord(DataInputStream record) throws IOException {
+        int type = record.readByte();
+        switch (type) {
+            case FILE_ADDED_RECORD:
+                ClientFileEntry entry = readFileEntry(record);
+                seedingFiles.put(entry.id, entry);
+                break;
+
+            case PART_COMPLETED_RECORD:
+                entry = seedingFiles.get(record.readInt());
+                if (entry != null) {
+                    entry.presentParts.add(record.readInt());
+                }
+                break;
+
+            default:
+                throw new IOException("Unknown journal record type: " + type);
+        }
+    }
+
+    private static byte[] fileAddedRecord(ClientFileEntry entry) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(record);
+        stream.writeByte(FILE_ADDED_RECORD);
+        writeFileEntry(stream, entry);
+        return record.toByteArray();
+    }
+
+    private static byte[] partCompletedRecord(int fileId, int partId) {
+        return ByteBuffer.allocate(PART_COMPLETED_RECORD_SIZE)
+                .put((byte) PART_COMPLETED_RECORD)
+                .putInt(fileId)
+                .putInt(partId)
+                .array();
     }
 
     private class ClientFileEntry {
@@ -100,25 +286,36 @@ public class TorrentClient implements Closeable {
         int id;
         Path path;
         long size;
-        boolean[] isPartPresent;
+        PartSet presentParts;
+        byte[][] partHashes; // empty if the parts cannot be verified
         // CHECKSTYLE.ON: VisibilityModifier
+        private final Set<BlockingQueue<Integer>> subscribers = ConcurrentHashMap.newKeySet();
 
-        ClientFileEntry(int id, Path path, long size, boolean isFileExists) {
+        ClientFileEntry(int id, Path path, long size, byte[][] partHashes, boolean isFileExists) {
             this.id = id;
             this.path = path;
             this.size = size;
-            int partCount = getPartCount(size);
-            isPartPresent = new boolean[partCount];
-            for (int i = 0; i < partCount; i++) {
-                isPartPresent[i] = isFileExists;
-            }
+            this.partHashes = partHashes;
+            presentParts = new PartSet(getPartCount(size), isFileExists);
         }
 
-        ClientFileEntry(int id, Path path, long size, boolean[] isPartPresent) {
+        ClientFileEntry(int id, Path path, long size, byte[][] partHashes, PartSet presentParts) {
             this.id = id;
             this.path = path;
             this.size = size;
-            this.isPartPresent = isPartPresent;
+            this.partHashes = partHashes;
+            this.presentParts = presentParts;
+        }
+
+        /**
+         * Marks the part present and pushes it to the subscribed peers.
+         */
+        public void addPart(int partId) {
+            if (presentParts.add(partId)) {
+                for (BlockingQueue<Integer> subscriber : subscribers) {
+                    subscriber.add(partId);
+                }
+            }
         }
 
         public int getPartSize(int partId) {
@@ -134,6 +331,69 @@ public class TorrentClient implements Closeable {
         return (int) Math.ceil(1.0 * size / ClientProtocol.PART_SIZE);
     }
 
+    /**
+     * Sets the policy that orders missing parts, rarest first by default.
+     */
+    public void setPiecePicker(PiecePicker piecePicker) {
+        this.piecePicker = piecePicker;
+    }
+
+    /**
+     * If enabled, files started downloading afterwards are written through memory mappings
+     * instead of positional writes from a pooled buffer.
+     */
+    public void setMemoryMappedDownloads(boolean useMemoryMappedDownloads) {
+        this.useMemoryMappedDownloads = useMemoryMappedDownloads;
+    }
+
+    /**
+     * @return pool of the buffers blocks are received into, with its exhaustion and wait time metrics
+     */
+    BufferPool getBlockBufferPool() {
+        return blockBuffers;
+    }
+
+    /**
+     * Sets how many bytes of recently requested parts are kept in memory to serve peers, 0 by default.
+     * Worth enabling for a seeder many peers download the same parts from at once.
+     * A budget smaller than {@link ClientProtocol#PART_SIZE} keeps the cache disabled.
+     */
+    public void setPartCacheBudget(long budget) {
+        partCache.setBudget(budget);
+    }
+
+    /**
+     * Sets how many peers are uploaded to at once, besides the one unchoked optimistically.
+     */
+    public void setUploadSlots(int slotCount) {
+        uploadSlots.setSlotCount(slotCount);
+    }
+
+    /**
+     * Limits the upload rate in total and to every peer connection, in bytes per second, 0 for no limit.
+     * Takes effect for the transfers that are already running too.
+     */
+    public void setUploadRateLimit(long totalRate, long peerRate) {
+        uploadRateLimit = totalRate;
+        peerUploadRateLimit = peerRate;
+    }
+
+    /**
+     * Limits the download rate in total and from every peer, in bytes per second, 0 for no limit.
+     * Takes effect for the transfers that are already running too.
+     */
+    public void setDownloadRateLimit(long totalRate, long peerRate) {
+        downloadRateLimit = totalRate;
+        peerDownloadRateLimit = peerRate;
+    }
+
+    /**
+     * @return cache of the parts served to peers, with its hit ratio
+     */
+    PartCache getPartCache() {
+        return partCache;
+    }
+
     public List<FileInfo> getFilesInfo() {
         return seedingFiles.entrySet()
                 .stream()
@@ -141,54 +401,67 @@ public class TorrentClient implements Closeable {
                 .collect(Collectors.toList());
     }
 
-    private class Connection implements Closeable{
-        private final Socket socket;
-        private final DataInputStream inputStream;
-        private final DataOutputStream outputStream;
-
-        Connection(String serverIp, int port) throws IOException {
-            this.socket = new Socket(serverIp, port);
-            this.inputStream = new DataInputStream(socket.getInputStream());
-            this.outputStream = new DataOutputStream(socket.getOutputStream());
-        }
-
-        @Override
-        public void close() throws IOException {
-            outputStream.close();
-            inputStream.close();
-            socket.close();
+    public List<TrackerProtocol.TrackerFileEntry> filesOnServer() throws IOException {
+        synchronized (catalog) {
+            refreshCatalog();
+            return new ArrayList<>(catalog.values());
         }
     }
 
-    public List<TrackerProtocol.TrackerFileEntry> filesOnServer() throws IOException {
+    public void getFile(int id) throws IOException {
+        TrackerProtocol.TrackerFileEntry entry;
+        synchronized (catalog) {
+            if (!catalog.containsKey(id)) {
+                refreshCatalog();
+            }
+            entry = catalog.get(id);
+        }
+        if (entry == null) {
+            return;
+        }
+        byte[][] partHashes;
         try (Connection connection = new Connection(serverIp, TrackerProtocol.SERVER_PORT)) {
-            return TrackerProtocol.makeListQuery(connection.inputStream, connection.outputStream);
+            partHashes = TrackerProtocol.makeHashesQuery(connection.inputStream, connection.outputStream, id);
         }
+        Path filePath = Paths.get(seedingFolder.toString(), entry.fileName);
+        ClientFileEntry newEntry = new ClientFileEntry(id, filePath, entry.size, partHashes, false);
+        synchronized (downloadingFiles) {
+            downloadingFiles.put(id, newEntry);
+            seedingFiles.put(id, newEntry);
+            partCache.invalidateFile(id); // a tracker that has lost its catalog gives the id to another file
+            downloadingFiles.notify();
+        }
+        journal.appendAndWait(fileAddedRecord(newEntry));
     }
 
-    public void getFile(int id) throws IOException {
-        List<TrackerProtocol.TrackerFileEntry> files = filesOnServer();
-        for (TrackerProtocol.TrackerFileEntry entry : files) {
-            if (entry.id == id) {
-                synchronized (downloadingFiles) {
-                    Path filePath = Paths.get(seedingFolder.toString(), entry.fileName);
-                    ClientFileEntry newEntry = new ClientFileEntry(id, filePath, entry.size, false);
-                    downloadingFiles.put(id, newEntry);
-                    seedingFiles.put(id, newEntry);
-                    downloadingFiles.notify();
-                }
-                break;
-            }
+    /**
+     * Fetches the files added to the tracker since the last refresh. Must be called holding the catalog lock.
+     */
+    private void refreshCatalog() throws IOException {
+        TrackerProtocol.ListSinceQueryData changes;
+        try (Connection connection = new Connection(serverIp, TrackerProtocol.SERVER_PORT)) {
+            changes = TrackerProtocol.makeListSinceQuery(connection.inputStream, connection.outputStream,
+                    catalogVersion);
+        }
+        if (changes.version < catalogVersion) {
+            catalog.clear(); // the tracker has lost its catalog and sent all of it
         }
+        for (TrackerProtocol.TrackerFileEntry entry : changes.files) {
+            catalog.put(entry.id, entry);
+        }
+        catalogVersion = changes.version;
     }
 
     public int addFile(Path filePath) throws IOException {
+        long size = Files.size(filePath);
+        byte[][] partHashes = PartHasher.hashParts(filePath, size);
         try (Connection connection = new Connection(serverIp, TrackerProtocol.SERVER_PORT)) {
-            long size = Files.size(filePath);
-            int id = TrackerProtocol.makeUploadQuery(connection.inputStream, connection.outputStream,
-                    filePath.getFileName().toString(), size);
-            ClientFileEntry entry = new ClientFileEntry(id, filePath, size, true);
+            int id = TrackerProtocol.makeUploadHashedQuery(connection.inputStream, connection.outputStream,
+                    filePath.getFileName().toString(), size, partHashes);
+            ClientFileEntry entry = new ClientFileEntry(id, filePath, size, partHashes, true);
             seedingFiles.put(id, entry);
+            partCache.invalidateFile(id);
+            journal.appendAndWait(fileAddedRecord(entry));
             return id;
         }
     }
@@ -199,25 +472,126 @@ public class TorrentClient implements Closeable {
         }
     }
 
-    public boolean update() throws IOException {
+    /**
+     * @return at most limit random seeders of the file
+     */
+    public List<TrackerProtocol.ClientEntry> fileSeeders(int fileId, int limit) throws IOException {
         try (Connection connection = new Connection(serverIp, TrackerProtocol.SERVER_PORT)) {
-            return TrackerProtocol.makeUpdateQuery(connection.inputStream, connection.outputStream,
-                    serverSocket.getLocalPort(),
-                    seedingFiles.entrySet().stream().mapToInt(Map.Entry::getKey).toArray());
+            return TrackerProtocol.makeSourcesSampleQuery(connection.inputStream, connection.outputStream,
+                    fileId, limit);
         }
     }
 
-    private byte[] getPart(int fileId, int partId, int partSize,
-                           TrackerProtocol.ClientEntry seeder) throws IOException {
-        try (Connection connection =
-                     new Connection(InetAddress.getByAddress(seeder.ip).getHostAddress(), seeder.port)) {
-            return ClientProtocol.makeGetQuery(connection.inputStream, connection.outputStream,
-                    fileId, partId, partSize);
+    /**
+     * @return seeders of a downloading file, refreshed for all the downloading files at once
+     * at most every {@link #SERVER_QUERY_DELAY} ms
+     */
+    private List<TrackerProtocol.ClientEntry> downloadSeeders(int fileId) throws IOException {
+        synchronized (downloadSourcesLock) {
+            if (System.currentTimeMillis() - downloadSourcesTime >= SERVER_QUERY_DELAY
+                    || !downloadSources.containsKey(fileId)) {
+                Set<Integer> fileIds = new HashSet<>(downloadingFiles.keySet());
+                fileIds.add(fileId);
+                try (Connection connection = new Connection(serverIp, TrackerProtocol.SERVER_PORT)) {
+                    downloadSources = TrackerProtocol.makeSourcesSampleBatchQuery(connection.inputStream,
+                            connection.outputStream, fileIds.stream().mapToInt(Integer::intValue).toArray(),
+                            MAX_SOURCES_PER_FILE);
+                }
+                downloadSourcesTime = System.currentTimeMillis();
+            }
+            return new ArrayList<>(downloadSources.get(fileId));
         }
     }
 
+    /**
+     * Remembers the peers as the most recently seen ones; when there are too many,
+     * the least recently seen are forgotten.
+     */
+    private void addKnownPeers(int fileId, Collection<TrackerProtocol.ClientEntry> peers) {
+        Set<TrackerProtocol.ClientEntry> known = knownPeers.computeIfAbsent(fileId, id -> new LinkedHashSet<>());
+        synchronized (known) {
+            for (TrackerProtocol.ClientEntry peer : peers) {
+                if (serverSocket != null && peer.port == serverSocket.getLocalPort()) {
+                    continue;
+                }
+                known.remove(peer);
+                if (known.size() >= MAX_KNOWN_PEERS_PER_FILE) {
+                    Iterator<TrackerProtocol.ClientEntry> oldest = known.iterator();
+                    oldest.next();
+                    oldest.remove();
+                }
+                known.add(peer);
+            }
+        }
+    }
+
+    /**
+     * Forgets a peer that cannot be connected to, it is learned again from the tracker or other peers.
+     */
+    private void removeKnownPeer(int fileId, TrackerProtocol.ClientEntry peer) {
+        Set<TrackerProtocol.ClientEntry> known = knownPeers.getOrDefault(fileId, Collections.emptySet());
+        synchronized (known) {
+            known.remove(peer);
+        }
+    }
+
+    private List<TrackerProtocol.ClientEntry> getKnownPeers(int fileId) {
+        Set<TrackerProtocol.ClientEntry> known = knownPeers.getOrDefault(fileId, Collections.emptySet());
+        synchronized (known) {
+            return new ArrayList<>(known);
+        }
+    }
+
+    /**
+     * @return at most {@link #MAX_PEX_PEERS} random known peers of the file except the given one
+     */
+    private List<TrackerProtocol.ClientEntry> samplePeers(int fileId, TrackerProtocol.ClientEntry except) {
+        List<TrackerProtocol.ClientEntry> peers = getKnownPeers(fileId);
+        peers.remove(except);
+        Collections.shuffle(peers);
+        return peers.subList(0, Math.min(MAX_PEX_PEERS, peers.size()));
+    }
+
+    /**
+     * Announces the seeding files: only the changes since the last applied announce are sent,
+     * the full list is sent first and when the tracker asks for a resync.
+     */
+    public boolean update() throws IOException {
+        int[] fileIds = seedingFiles.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        synchronized (announceLock) {
+            try (Connection connection = new Connection(serverIp, TrackerProtocol.SERVER_PORT)) {
+                if (announcedFileIds != null) {
+                    final int[] previousFileIds = announcedFileIds;
+                    int[] addedIds = Arrays.stream(fileIds)
+                            .filter(id -> Arrays.binarySearch(previousFileIds, id) < 0).toArray();
+                    int[] removedIds = Arrays.stream(previousFileIds)
+                            .filter(id -> Arrays.binarySearch(fileIds, id) < 0).toArray();
+                    if (TrackerProtocol.makeUpdateDeltaQuery(connection.inputStream, connection.outputStream,
+                            serverSocket.getLocalPort(), announceSequence + 1, addedIds, removedIds)) {
+                        announceSequence++;
+                        announcedFileIds = fileIds;
+                        return true;
+                    }
+                }
+                announcedFileIds = null;
+                boolean applied = TrackerProtocol.makeUpdateQuery(connection.inputStream, connection.outputStream,
+                        serverSocket.getLocalPort(), fileIds);
+                if (applied) {
+                    announceSequence = 0;
+                    announcedFileIds = fileIds;
+                }
+                return applied;
+            }
+        }
+    }
+
+    private static InetSocketAddress getPeerAddress(TrackerProtocol.ClientEntry peer) throws IOException {
+        return new InetSocketAddress(InetAddress.getByAddress(peer.ip), peer.port);
+    }
+
     public void startPeering(int seedingPort) throws IOException {
-        serverSocket = new ServerSocket(seedingPort);
+        // channel-backed sockets let GET responses be sent with FileChannel.transferTo
+        serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(seedingPort)).socket();
         executorService.submit(this::startServer);
         updateTimer.scheduleAtFixedRate(new TimerTask() {
             @Override
@@ -229,24 +603,40 @@ public class TorrentClient implements Closeable {
                 }
             }
         }, 0, TrackerProtocol.TIME_BETWEEN_UPDATE_QUERIES);
+        updateTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                connectionPool.evictIdle();
+                peerDownloadBuckets.values().removeIf(TokenBucket::isFull);
+                peerUploadBuckets.values().removeIf(TokenBucket::isFull);
+            }
+        }, ConnectionPool.IDLE_TIMEOUT, ConnectionPool.IDLE_TIMEOUT);
+        updateTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                uploadSlots.evaluate(System.currentTimeMillis());
+            }
+        }, UPLOAD_SLOTS_EVALUATION_PERIOD, UPLOAD_SLOTS_EVALUATION_PERIOD);
         executorService.submit(this::downloadFiles);
     }
 
 
     private void startServer() {
-        try (ServerSocket dummy = serverSocket) {
-            while (!serverSocket.isClosed()) {
-                Socket socket = serverSocket.accept();
+        ServerSocket server = serverSocket;
+        try (ServerSocket dummy = server) {
+            while (!server.isClosed()) {
+                Socket socket = server.accept();
                 executorService.submit(() -> handleClient(socket));
             }
         } catch (IOException e) {
-            if (!e.getMessage().equals("socket closed")) {
+            if (!server.isClosed()) {
                 e.printStackTrace();
             }
         }
     }
 
     private void handleClient(Socket socket) {
+        UploadSlots.Peer uploadPeer = null; // registered by the first request for data, subscriptions make none
         try (DataInputStream inputStream = new DataInputStream(socket.getInputStream());
              DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream())) {
             while (!socket.isClosed()) {
@@ -256,34 +646,171 @@ public class TorrentClient implements Closeable {
                         int id = ClientProtocol.getStatQueryId(inputStream);
                         List<Integer> availableParts = new ArrayList<>();
                         ClientFileEntry entry = seedingFiles.get(id);
-                        for (int i = 0; i < getPartCount(entry.size); i++) {
-                            if (entry.isPartPresent[i]) {
-                                availableParts.add(i);
-                            }
+                        for (int i = entry.presentParts.nextPresent(0); i >= 0;
+                             i = entry.presentParts.nextPresent(i + 1)) {
+                            availableParts.add(i);
                         }
                         ClientProtocol.statQueryResponse(outputStream, availableParts);
                         break;
 
+                    case ClientProtocol.STAT_BITMAP_QUERY:
+                        entry = seedingFiles.get(ClientProtocol.getStatQueryId(inputStream));
+                        ClientProtocol.statBitmapQueryResponse(outputStream, entry.presentParts);
+                        break;
+
                     case ClientProtocol.GET_QUERY:
                         ClientProtocol.GetQueryData queryData = ClientProtocol.getGetQueryData(inputStream);
                         entry = seedingFiles.get(queryData.id);
-                        try (RandomAccessFile file = new RandomAccessFile(entry.path.toString(), "r")) {
-                            file.seek((long) queryData.part * ClientProtocol.PART_SIZE);
-                            int partSize = entry.getPartSize(queryData.part);
-                            byte[] buffer = new byte[partSize];
-                            file.readFully(buffer, 0, partSize);
-                            ClientProtocol.getGetQueryResponse(outputStream, buffer);
+                        checkPartPresent(entry, queryData.part);
+                        if (uploadPeer == null) {
+                            uploadPeer = uploadSlots.register();
+                        }
+                        uploadSlots.awaitUnchoke(uploadPeer); // the plain GET has no way to say it is choked
+                        sendPart(socket.getChannel(), entry, queryData.part, 0, entry.getPartSize(queryData.part),
+                                getPeerUploadBucket(socket.getInetAddress()));
+                        uploadPeer.uploaded(entry.getPartSize(queryData.part));
+                        break;
+
+                    case ClientProtocol.GET_RANGE_QUERY:
+                        ClientProtocol.GetRangeQueryData range = ClientProtocol.getGetRangeQueryData(inputStream);
+                        entry = seedingFiles.get(range.id);
+                        checkPartPresent(entry, range.part);
+                        if (range.offset < 0 || range.length < 0
+                                || (long) range.offset + range.length > entry.getPartSize(range.part)) {
+                            throw new IllegalStateException("Incorrect range of part " + range.part);
+                        }
+                        if (uploadPeer == null) {
+                            uploadPeer = uploadSlots.register();
+                        }
+                        if (!uploadSlots.tryUnchoke(uploadPeer)) {
+                            ClientProtocol.getRangeChokedResponse(outputStream,
+                                    (int) uploadSlots.getRetryDelay(System.currentTimeMillis()));
+                            break;
+                        }
+                        ClientProtocol.getRangeUnchokedHeader(outputStream);
+                        sendPart(socket.getChannel(), entry, range.part, range.offset, range.length,
+                                getPeerUploadBucket(socket.getInetAddress()));
+                        uploadPeer.uploaded(range.length);
+                        break;
+
+                    case ClientProtocol.SUBSCRIBE_QUERY:
+                        pushParts(seedingFiles.get(ClientProtocol.getStatQueryId(inputStream)), outputStream);
+                        return;
+
+                    case ClientProtocol.PEX_QUERY:
+                        ClientProtocol.PexQueryData pex = ClientProtocol.getPexQueryData(inputStream);
+                        TrackerProtocol.ClientEntry requester =
+                                new TrackerProtocol.ClientEntry(socket.getInetAddress().getAddress(), pex.port);
+                        List<TrackerProtocol.ClientEntry> peers = samplePeers(pex.id, requester);
+                        if (seedingFiles.containsKey(pex.id)) {
+                            addKnownPeers(pex.id, Collections.singletonList(requester));
+                            addKnownPeers(pex.id, pex.peers);
                         }
+                        ClientProtocol.pexQueryResponse(outputStream, peers);
                         break;
 
                     default:
                         throw new IllegalStateException("Unknown query type: " + type);
                 }
             }
-        } catch (EOFException ignored) {
-
+        } catch (EOFException | ClosedByInterruptException | InterruptedException ignored) {
+            // peer has closed the connection or the client is shutting down
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            if (uploadPeer != null) {
+                uploadPeer.close();
+            }
+        }
+    }
+
+    /**
+     * Sends the range of the part from the part cache if it is enabled, otherwise straight from the file.
+     * The range is sent in chunks, each of them waits for the upload limits.
+     */
+    private void sendPart(SocketChannel channel, ClientFileEntry entry, int partId,
+                          int offset, int length, TokenBucket peerBucket) throws IOException {
+        long partPosition = (long) partId * ClientProtocol.PART_SIZE;
+        if (partCache.isEnabled()) {
+            PartCache.Loader loader = buffer -> {
+                try (FileChannelCache.Handle file = acquireFile(entry)) {
+                    while (buffer.hasRemaining()) {
+                        if (file.channel().read(buffer, partPosition + buffer.position()) < 0) {
+                            throw new EOFException("File is shorter than requested part");
+                        }
+                    }
+                }
+            };
+            int partSize = entry.getPartSize(partId);
+            try (PartCache.Handle cachedPart = partCache.get(entry.id, partId, partSize, loader)) {
+                ByteBuffer part = cachedPart.part();
+                for (int sent = 0; sent < length; sent += THROTTLED_CHUNK_SIZE) {
+                    int chunkSize = Math.min(THROTTLED_CHUNK_SIZE, length - sent);
+                    TokenBucket.acquire(chunkSize, uploadBucket, peerBucket);
+                    part.limit(offset + sent + chunkSize);
+                    part.position(offset + sent);
+                    ClientProtocol.getGetQueryResponse(channel, part);
+                }
+            }
+            return;
+        }
+        try (FileChannelCache.Handle file = acquireFile(entry)) {
+            for (int sent = 0; sent < length; sent += THROTTLED_CHUNK_SIZE) {
+                int chunkSize = Math.min(THROTTLED_CHUNK_SIZE, length - sent);
+                TokenBucket.acquire(chunkSize, uploadBucket, peerBucket);
+                ClientProtocol.getGetQueryResponse(channel, file.channel(), partPosition + offset + sent,
+                        chunkSize);
+            }
+        }
+    }
+
+    /**
+     * @return read-only channel of the file shared by its uploads
+     */
+    private FileChannelCache.Handle acquireFile(ClientFileEntry entry) throws IOException {
+        return fileChannels.acquire(entry.id, entry.path);
+    }
+
+    /**
+     * Looked up for every request rather than kept by the connection,
+     * so that a bucket dropped when full is not used alongside its replacement for long.
+     */
+    private TokenBucket getPeerUploadBucket(InetAddress address) {
+        return peerUploadBuckets.computeIfAbsent(address, key -> new TokenBucket(() -> peerUploadRateLimit));
+    }
+
+    /**
+     * Missing parts are never requested by a peer that follows the bitmaps it is sent,
+     * reading one would send zeros, or cache them.
+     */
+    private static void checkPartPresent(ClientFileEntry entry, int partId) {
+        if (entry == null || partId < 0 || partId >= entry.presentParts.partCount()
+                || !entry.presentParts.contains(partId)) {
+            throw new IllegalStateException("Part " + partId + " is not present");
+        }
+    }
+
+    /**
+     * Serves a subscription until the subscriber disconnects: sends the bitmap, then every new part.
+     */
+    private void pushParts(ClientFileEntry entry, DataOutputStream outputStream) {
+        if (subscriberCount.incrementAndGet() > MAX_SUBSCRIBERS) {
+            subscriberCount.decrementAndGet();
+            return; // refused by closing the connection, every subscriber holds a thread
+        }
+        BlockingQueue<Integer> newParts = new LinkedBlockingQueue<>();
+        entry.subscribers.add(newParts); // before the bitmap is taken, so that no part is missed
+        try {
+            ClientProtocol.subscribeQueryResponse(outputStream, entry.presentParts);
+            while (true) {
+                Integer partId = newParts.poll(SUBSCRIPTION_KEEPALIVE, TimeUnit.MILLISECONDS);
+                ClientProtocol.pushPart(outputStream, partId == null ? ClientProtocol.KEEPALIVE : partId);
+            }
+        } catch (IOException | InterruptedException ignored) {
+            // the subscriber has gone or the client is shutting down
+        } finally {
+            entry.subscribers.remove(newParts);
+            subscriberCount.decrementAndGet();
         }
     }
 
@@ -307,60 +834,388 @@ public class TorrentClient implements Closeable {
     }
 
     private void downloadFile(ClientFileEntry entry) {
-        Path filePath = Paths.get(seedingFolder.toString(), entry.path.getFileName().toString());
-        final RandomAccessFile file;
         try {
-            if (Files.notExists(filePath)) {
-                Files.createFile(filePath);
+            if (Files.notExists(entry.path)) {
+                Files.createFile(entry.path);
             }
-            file = new RandomAccessFile(filePath.toFile(), "rw");
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        // the download has a channel of its own: a shared one is closed when an upload thread is interrupted
+        try (RandomAccessFile file = new RandomAccessFile(entry.path.toFile(), "rw");
+             BlockWriter writer = useMemoryMappedDownloads
+                     ? new MappedBlockWriter(file.getChannel(), entry.size)
+                     : new ChannelBlockWriter(file.getChannel())) {
             file.setLength(entry.size);
+            new FileDownload(entry, writer).run();
         } catch (IOException e) {
             e.printStackTrace();
             return;
+        } catch (InterruptedException e) {
+            return;
+        }
+        downloadingFiles.remove(entry.id);
+    }
+
+    /**
+     * Downloads parts of one file from several seeders at once.
+     * At most {@link #MAX_PARTS_IN_FLIGHT_PER_FILE} parts are transferred simultaneously,
+     * and no more than {@link #MAX_PARTS_IN_FLIGHT_PER_PEER} of them from the same seeder.
+     * A part whose transfer failed is given to another seeder that has it.
+     */
+    private final class FileDownload {
+        private final ClientFileEntry entry;
+        private final BlockWriter writer;
+        private final Set<Integer> partsInFlight = new HashSet<>();
+        private final Map<TrackerProtocol.ClientEntry, Integer> peerLoad = new HashMap<>();
+        private final Map<Integer, Set<TrackerProtocol.ClientEntry>> failedPeers = new HashMap<>();
+        // peers that have choked us and the time they can be asked again
+        private final Map<TrackerProtocol.ClientEntry, Long> chokedPeers = new HashMap<>();
+        private final Map<Integer, PartProgress> partProgress = new HashMap<>();
+        private final Map<TrackerProtocol.ClientEntry, Subscription> subscriptions = new HashMap<>();
+        private List<List<TrackerProtocol.ClientEntry>> partOwners = Collections.emptyList();
+        private boolean finished = false;
+
+        private FileDownload(ClientFileEntry entry, BlockWriter writer) {
+            this.entry = entry;
+            this.writer = writer;
         }
-        boolean downloadCompleted = false;
-        while (!downloadCompleted) {
+
+        /**
+         * Parts are scheduled as soon as a transfer finishes or a subscribed peer pushes a new part;
+         * peers are looked for once in a while, and more often while there are no subscriptions.
+         */
+        private void run() throws InterruptedException {
+            long lastRefreshTime = 0;
+            long lastTrackerQueryTime = 0;
             try {
-                List<TrackerProtocol.ClientEntry> seeders = fileSeeders(entry.id);
-                Collections.shuffle(seeders); // to distribute load,
-                // otherwise all the clients will be downloading from the same seeder
-                TrackerProtocol.ClientEntry[] partOwner =
-                        new TrackerProtocol.ClientEntry[entry.isPartPresent.length];
-                for (TrackerProtocol.ClientEntry seeder : seeders) {
-                    if (seeder.port == serverSocket.getLocalPort()) {
-                        continue;
+                while (!isDownloaded()) {
+                    long refreshDelay;
+                    synchronized (this) {
+                        refreshDelay = subscriptions.isEmpty() ? SERVER_QUERY_DELAY : PEER_REFRESH_DELAY;
                     }
-                    try (Connection connection = new Connection(
-                            InetAddress.getByAddress(seeder.ip).getHostAddress(), seeder.port)) {
-                        for (int partId : ClientProtocol.makeStatQuery(connection.inputStream,
-                                connection.outputStream, entry.id)) {
-                            partOwner[partId] = seeder;
+                    if (System.currentTimeMillis() - lastRefreshTime >= refreshDelay) {
+                        // the tracker is only a bootstrap point: peers are mostly learned from other peers
+                        boolean queryTracker = getKnownPeers(entry.id).isEmpty()
+                                || System.currentTimeMillis() - lastTrackerQueryTime >= TRACKER_QUERY_DELAY;
+                        if (queryTracker) {
+                            lastTrackerQueryTime = System.currentTimeMillis();
                         }
+                        refreshPeers(queryTracker);
+                        lastRefreshTime = System.currentTimeMillis();
+                        synchronized (this) {
+                            failedPeers.clear(); // give peers that failed another chance once in a while
+                        }
+                    }
+                    synchronized (this) {
+                        schedule();
+                        wait(SERVER_QUERY_DELAY); // woken up when a transfer is finished or a part is pushed
+                    }
+                }
+            } finally {
+                unsubscribeAll();
+            }
+        }
+
+        private boolean isDownloaded() {
+            return entry.presentParts.isFull();
+        }
+
+        private void refreshPeers(boolean queryTracker) {
+            if (queryTracker) {
+                try {
+                    addKnownPeers(entry.id, downloadSeeders(entry.id));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            List<TrackerProtocol.ClientEntry> peers = getKnownPeers(entry.id);
+            Collections.shuffle(peers); // to distribute load,
+            // otherwise all the clients will be downloading from the same seeder
+            for (TrackerProtocol.ClientEntry peer : peers.subList(0, Math.min(PEX_PEERS_PER_REFRESH,
+                    peers.size()))) {
+                exchangePeers(peer);
+            }
+            for (TrackerProtocol.ClientEntry peer : peers) {
+                synchronized (this) {
+                    if (subscriptions.size() >= MAX_SUBSCRIPTIONS_PER_FILE) {
+                        return;
+                    }
+                    if (subscriptions.containsKey(peer)) {
+                        continue;
                     }
                 }
-                downloadCompleted = true;
-                for (int partId = 0; partId < entry.isPartPresent.length; partId++) {
-                    if (!entry.isPartPresent[partId]) {
-                        downloadCompleted = false;
-                        if (partOwner[partId] == null) {
-                            continue;
+                try {
+                    subscribe(peer);
+                } catch (EOFException e) {
+                    // refused, the peer serves too many subscribers; it can still be downloaded from
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    removeKnownPeer(entry.id, peer);
+                }
+            }
+        }
+
+        private void exchangePeers(TrackerProtocol.ClientEntry peer) {
+            try {
+                List<TrackerProtocol.ClientEntry> peers = connectionPool.execute(getPeerAddress(peer),
+                        connection -> ClientProtocol.makePexQuery(connection.inputStream, connection.outputStream,
+                                entry.id, serverSocket.getLocalPort(), samplePeers(entry.id, peer)));
+                addKnownPeers(entry.id, peers);
+            } catch (IOException e) {
+                e.printStackTrace();
+                removeKnownPeer(entry.id, peer);
+            }
+        }
+
+        /**
+         * Gets the parts the peer has and starts listening to the parts it pushes.
+         */
+        private void subscribe(TrackerProtocol.ClientEntry peer) throws IOException {
+            Connection connection = new Connection(getPeerAddress(peer));
+            Subscription subscription;
+            try {
+                connection.channel.socket().setSoTimeout(SUBSCRIPTION_TIMEOUT);
+                PartSet parts = ClientProtocol.makeSubscribeQuery(connection.inputStream, connection.outputStream,
+                        entry.id, entry.presentParts.partCount());
+                subscription = new Subscription(connection, parts);
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+            synchronized (this) {
+                if (finished) {
+                    connection.close();
+                    return;
+                }
+                subscriptions.put(peer, subscription);
+                notifyAll();
+            }
+            executorService.submit(() -> listen(peer, subscription));
+        }
+
+        private void listen(TrackerProtocol.ClientEntry peer, Subscription subscription) {
+            try {
+                while (true) {
+                    int partId = ClientProtocol.readPushedPart(subscription.connection.inputStream);
+                    if (partId != ClientProtocol.KEEPALIVE) {
+                        subscription.parts.add(partId);
+                        synchronized (this) {
+                            notifyAll();
                         }
+                    }
+                }
+            } catch (IOException | IndexOutOfBoundsException e) {
+                synchronized (this) {
+                    subscriptions.remove(peer, subscription);
+                    notifyAll();
+                    if (!finished && !(e instanceof EOFException || e instanceof ClosedByInterruptException)) {
+                        e.printStackTrace();
+                    }
+                }
+                try {
+                    subscription.connection.close();
+                } catch (IOException closeException) {
+                    closeException.printStackTrace();
+                }
+            }
+        }
+
+        private void unsubscribeAll() {
+            List<Subscription> closed;
+            synchronized (this) {
+                finished = true;
+                closed = new ArrayList<>(subscriptions.values());
+            }
+            for (Subscription subscription : closed) {
+                try {
+                    subscription.connection.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void updatePartOwners() {
+            int partCount = entry.presentParts.partCount();
+            List<List<TrackerProtocol.ClientEntry>> owners = new ArrayList<>(partCount);
+            for (int i = 0; i < partCount; i++) {
+                owners.add(new ArrayList<>());
+            }
+            List<Map.Entry<TrackerProtocol.ClientEntry, Subscription>> peers =
+                    new ArrayList<>(subscriptions.entrySet());
+            Collections.shuffle(peers); // ties between equally loaded peers are broken randomly
+            for (Map.Entry<TrackerProtocol.ClientEntry, Subscription> peer : peers) {
+                PartSet parts = peer.getValue().parts;
+                for (int partId = parts.nextPresent(0); partId >= 0; partId = parts.nextPresent(partId + 1)) {
+                    owners.get(partId).add(peer.getKey());
+                }
+            }
+            partOwners = owners;
+        }
+
+        private void schedule() {
+            updatePartOwners();
+            int[] availability = new int[partOwners.size()];
+            for (int partId = 0; partId < availability.length; partId++) {
+                availability[partId] = partOwners.get(partId).size();
+            }
+            int[] order = piecePicker.order(availability,
+                    partId -> !entry.presentParts.contains(partId) && !partsInFlight.contains(partId));
+            for (int partId : order) {
+                if (partsInFlight.size() >= MAX_PARTS_IN_FLIGHT_PER_FILE) {
+                    return;
+                }
+                TrackerProtocol.ClientEntry peer = choosePeer(partId);
+                if (peer != null) {
+                    final int part = partId;
+                    partsInFlight.add(part);
+                    peerLoad.merge(peer, 1, Integer::sum);
+                    executorService.submit(() -> fetchPart(part, peer));
+                }
+            }
+        }
 
-                        byte[] partData = getPart(entry.id, partId, entry.getPartSize(partId), partOwner[partId]);
-                        file.seek((long) partId * ClientProtocol.PART_SIZE);
-                        file.write(partData);
-                        entry.isPartPresent[partId] = true;
+        private TrackerProtocol.ClientEntry choosePeer(int partId) {
+            Set<TrackerProtocol.ClientEntry> failed = failedPeers.getOrDefault(partId, Collections.emptySet());
+            TrackerProtocol.ClientEntry bestPeer = null;
+            int bestLoad = MAX_PARTS_IN_FLIGHT_PER_PEER;
+            long now = System.currentTimeMillis();
+            for (TrackerProtocol.ClientEntry peer : partOwners.get(partId)) {
+                int load = peerLoad.getOrDefault(peer, 0);
+                if (load < bestLoad && !failed.contains(peer) && chokedPeers.getOrDefault(peer, 0L) <= now) {
+                    bestPeer = peer;
+                    bestLoad = load;
+                }
+            }
+            return bestPeer;
+        }
+
+        private void fetchPart(int partId, TrackerProtocol.ClientEntry peer) {
+            boolean succeeded = false;
+            try {
+                int retryDelay = connectionPool.execute(getPeerAddress(peer),
+                        connection -> fetchBlocks(connection, partId, peerDownloadBuckets.computeIfAbsent(peer,
+                                key -> new TokenBucket(() -> peerDownloadRateLimit))));
+                if (retryDelay != ClientProtocol.NOT_CHOKED) {
+                    synchronized (this) {
+                        chokedPeers.put(peer, System.currentTimeMillis() + retryDelay);
                     }
+                    succeeded = true; // the peer has not failed, the rest of the part is fetched later
+                    return;
                 }
-                Thread.sleep(SERVER_QUERY_DELAY); //to not to spam with queries
+                PartProgress progress;
+                synchronized (this) {
+                    progress = partProgress.remove(partId);
+                }
+                if (entry.partHashes.length > 0
+                        && !MessageDigest.isEqual(entry.partHashes[partId], progress.digest.digest())) {
+                    throw new IOException("Part " + partId + " of file " + entry.id + " is corrupted");
+                }
+                writer.flush((long) partId * ClientProtocol.PART_SIZE, entry.getPartSize(partId));
+                entry.addPart(partId);
+                journal.append(partCompletedRecord(entry.id, partId));
+                succeeded = true;
+            } catch (ConnectException e) {
+                e.printStackTrace();
+                removeKnownPeer(entry.id, peer);
             } catch (IOException e) {
                 e.printStackTrace();
-            } catch (InterruptedException e) {
-                return;
+            } finally {
+                synchronized (this) {
+                    partsInFlight.remove(partId);
+                    peerLoad.merge(peer, -1, Integer::sum);
+                    if (!succeeded) {
+                        failedPeers.computeIfAbsent(partId, id -> new HashSet<>()).add(peer);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Downloads the part block by block, keeping up to {@link #PIPELINED_BLOCKS_PER_CONNECTION}
+         * requests outstanding. Starts from the first block that has not been received yet.
+         *
+         * @return NOT_CHOKED if the part has been received, otherwise the delay the peer has choked us for;
+         * the responses to the outstanding requests are read anyway, so the connection can be reused
+         */
+        private int fetchBlocks(Connection connection, int partId, TokenBucket peerBucket) throws IOException {
+            int partSize = entry.getPartSize(partId);
+            PartProgress progress;
+            synchronized (this) {
+                progress = partProgress.computeIfAbsent(partId, id -> new PartProgress());
+            }
+            int offset = progress.receivedBytes;
+            int requestedOffset = offset;
+            int outstandingBlocks = 0;
+            ByteBuffer blockBuffer = blockBuffers.acquire();
+            try {
+                while (offset < partSize) {
+                    while (outstandingBlocks < PIPELINED_BLOCKS_PER_CONNECTION && requestedOffset < partSize) {
+                        int length = Math.min(ClientProtocol.BLOCK_SIZE, partSize - requestedOffset);
+                        ClientProtocol.makeGetRangeRequest(connection.outputStream, entry.id, partId,
+                                requestedOffset, length);
+                        requestedOffset += length;
+                        outstandingBlocks++;
+                    }
+                    int length = Math.min(ClientProtocol.BLOCK_SIZE, partSize - offset);
+                    int retryDelay = ClientProtocol.readGetRangeHeader(connection.inputStream);
+                    outstandingBlocks--;
+                    if (retryDelay != ClientProtocol.NOT_CHOKED) {
+                        skipResponses(connection, partSize, offset + length, outstandingBlocks, blockBuffer);
+                        return retryDelay;
+                    }
+                    TokenBucket.acquire(length, downloadBucket, peerBucket);
+                    ByteBuffer block = writer.receive(connection.channel,
+                            (long) partId * ClientProtocol.PART_SIZE + offset, length, blockBuffer);
+                    progress.digest.update(block);
+                    offset += length;
+                    progress.receivedBytes = offset;
+                }
+                return ClientProtocol.NOT_CHOKED;
+            } finally {
+                blockBuffers.release(blockBuffer);
+            }
+        }
+
+        /**
+         * Reads and drops the responses to the requests of the count blocks starting from the offset.
+         */
+        private void skipResponses(Connection connection, int partSize, int offset, int count,
+                                   ByteBuffer buffer) throws IOException {
+            for (int i = 0; i < count; i++) {
+                int length = Math.min(ClientProtocol.BLOCK_SIZE, partSize - offset);
+                if (ClientProtocol.readGetRangeHeader(connection.inputStream) == ClientProtocol.NOT_CHOKED) {
+                    buffer.clear();
+                    buffer.limit(length);
+                    BlockWriter.readFully(connection.channel, buffer);
+                }
+                offset += length;
             }
         }
-        downloadingFiles.remove(entry.id);
+    }
+
+    /**
+     * Parts a peer has: the bitmap it answered SUBSCRIBE with and the parts it has pushed since.
+     */
+    private static final class Subscription {
+        private final Connection connection;
+        private final PartSet parts;
+
+        private Subscription(Connection connection, PartSet parts) {
+            this.connection = connection;
+            this.parts = parts;
+        }
+    }
+
+    /**
+     * Bytes of a part received so far, they are hashed as they arrive.
+     */
+    private static final class PartProgress {
+        private final MessageDigest digest = PartHasher.newDigest();
+        private int receivedBytes = 0;
     }
 
     public class FileInfo {
@@ -372,14 +1227,9 @@ public class TorrentClient implements Closeable {
 
         FileInfo(ClientFileEntry entry) {
             fileName = entry.path.getFileName().toString();
-            int downloadedPartCnt = 0;
-            for (boolean b : entry.isPartPresent) {
-                if (b) {
-                    downloadedPartCnt++;
-                }
-            }
-            isFinished = downloadedPartCnt == entry.isPartPresent.length;
-            downloadedPercentage = (double) downloadedPartCnt / entry.isPartPresent.length;
+            int downloadedPartCnt = entry.presentParts.presentCount();
+            isFinished = downloadedPartCnt == entry.presentParts.partCount();
+            downloadedPercentage = (double) downloadedPartCnt / entry.presentParts.partCount();
         }
     }
 }
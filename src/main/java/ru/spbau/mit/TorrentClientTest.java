@@ -0,0 +1,373 @@
+package ru.spbau.mit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TorrentClientTest {
+    private static final int SEEDER_PORT = 12400;
+    private static final int LEECHER_PORT = SEEDER_PORT + 1;
+    private static final int STUB_PEER_PORT = SEEDER_PORT + 2;
+    private static final byte[] LOCALHOST = {127, 0, 0, 1};
+    private static final int POLL_DELAY = 100;
+    private static final int PARTS_IN_FILE = 2;
+    private static final long DOWNLOAD_TIMEOUT = 60000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @After
+    public void cleanupServerFiles() {
+        Paths.get(TorrentServer.FILE_LIST_FILENAME).toFile().delete();
+    }
+
+    @Test
+    public void testCatalogRefresh() throws IOException {
+        try (TorrentClient uploader = new TorrentClient(temporaryFolder.newFolder().toPath(), "localhost");
+             TorrentClient client = new TorrentClient(temporaryFolder.newFolder().toPath(), "localhost")) {
+            try (TorrentServer tracker = new TorrentServer()) {
+                tracker.start();
+                uploader.addFile(newFile("first.txt"));
+                assertEquals(Arrays.asList("first.txt"), fileNames(client.filesOnServer()));
+                // the second refresh only fetches the file added since the first one
+                uploader.addFile(newFile("second.txt"));
+                assertEquals(Arrays.asList("first.txt", "second.txt"), fileNames(client.filesOnServer()));
+            }
+            Files.delete(Paths.get(TorrentServer.FILE_LIST_FILENAME));
+            try (TorrentServer tracker = new TorrentServer()) {
+                tracker.start();
+                uploader.addFile(newFile("third.txt"));
+                // the restarted tracker has an older catalog version, so the cached catalog is dropped
+                assertEquals(Arrays.asList("third.txt"), fileNames(client.filesOnServer()));
+            }
+        }
+    }
+
+    @Test(timeout = DOWNLOAD_TIMEOUT)
+    public void testCompletedPartsPushed() throws IOException {
+        Path leecherFolder = temporaryFolder.newFolder().toPath();
+        try (TorrentServer tracker = new TorrentServer();
+             TorrentClient seeder = new TorrentClient(temporaryFolder.newFolder().toPath(), "localhost");
+             TorrentClient leecher = new TorrentClient(leecherFolder, "localhost")) {
+            tracker.start();
+            Path file = newFile("pushed.bin", ClientProtocol.PART_SIZE * (PARTS_IN_FILE - 1) + 1);
+            int id = seeder.addFile(file);
+            leecher.startPeering(LEECHER_PORT);
+            leecher.getFile(id);
+            try (Connection subscription = new Connection("localhost", LEECHER_PORT)) {
+                PartSet parts = ClientProtocol.makeSubscribeQuery(subscription.inputStream,
+                        subscription.outputStream, id, PARTS_IN_FILE);
+                assertEquals(0, parts.presentCount());
+                // the leecher can only download once the seeder is announced
+                seeder.startPeering(SEEDER_PORT);
+                Set<Integer> pushedParts = new HashSet<>();
+                while (pushedParts.size() < parts.partCount()) {
+                    int partId = ClientProtocol.readPushedPart(subscription.inputStream);
+                    if (partId != ClientProtocol.KEEPALIVE) {
+                        pushedParts.add(partId);
+                    }
+                }
+                assertEquals(PARTS_IN_FILE, pushedParts.size());
+            }
+            Path downloadedFile = leecherFolder.resolve(file.getFileName());
+            assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(downloadedFile));
+        }
+    }
+
+    @Test(timeout = DOWNLOAD_TIMEOUT)
+    public void testPeerLearnedByExchangeUsed() throws IOException, InterruptedException {
+        Path leecherFolder = temporaryFolder.newFolder().toPath();
+        try (TorrentServer tracker = new TorrentServer();
+             TorrentClient seeder = new TorrentClient(temporaryFolder.newFolder().toPath(), "localhost");
+             TorrentClient leecher = new TorrentClient(leecherFolder, "localhost");
+             StubPeer pexPeer = new StubPeer(STUB_PEER_PORT, 0, new TrackerProtocol.ClientEntry(LOCALHOST,
+                     SEEDER_PORT))) {
+            tracker.start();
+            Path file = newFile("exchanged.bin", ClientProtocol.PART_SIZE * (PARTS_IN_FILE - 1) + 1);
+            int id = seeder.addFile(file);
+            seeder.startPeering(SEEDER_PORT);
+            while (seederPorts(seeder, id).isEmpty()) {
+                Thread.sleep(POLL_DELAY);
+            }
+            // the tracker only lists a peer that has nothing but the seeder to give
+            announce(SEEDER_PORT);
+            announce(STUB_PEER_PORT, id);
+            assertEquals(Arrays.asList(STUB_PEER_PORT), seederPorts(seeder, id));
+
+            leecher.startPeering(LEECHER_PORT);
+            leecher.getFile(id);
+            while (!leecher.getFilesInfo().get(0).isFinished) {
+                Thread.sleep(POLL_DELAY);
+            }
+            Path downloadedFile = leecherFolder.resolve(file.getFileName());
+            assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(downloadedFile));
+            assertFalse(seederPorts(leecher, id).contains(SEEDER_PORT));
+            assertEquals(0, pexPeer.getServedBytes());
+        }
+    }
+
+    @Test(timeout = DOWNLOAD_TIMEOUT)
+    public void testCorruptedPartDownloadedAgain() throws IOException, InterruptedException {
+        Path leecherFolder = temporaryFolder.newFolder().toPath();
+        try (TorrentServer tracker = new TorrentServer();
+             TorrentClient seeder = new TorrentClient(temporaryFolder.newFolder().toPath(), "localhost");
+             TorrentClient leecher = new TorrentClient(leecherFolder, "localhost");
+             StubPeer corruptingPeer = new StubPeer(STUB_PEER_PORT, PARTS_IN_FILE,
+                     new TrackerProtocol.ClientEntry(LOCALHOST, SEEDER_PORT))) {
+            tracker.start();
+            Path file = newFile("corrupted.bin", ClientProtocol.PART_SIZE * (PARTS_IN_FILE - 1) + 1);
+            int id = seeder.addFile(file);
+            announce(STUB_PEER_PORT, id);
+            leecher.startPeering(LEECHER_PORT);
+            leecher.getFile(id);
+            while (corruptingPeer.getServedBytes() < Files.size(file)) {
+                Thread.sleep(POLL_DELAY);
+            }
+            assertEquals(0, leecher.getFilesInfo().get(0).downloadedPercentage, 0);
+
+            // the stub names the seeder, which the parts that have failed the hash check are fetched from
+            seeder.startPeering(SEEDER_PORT);
+            while (!leecher.getFilesInfo().get(0).isFinished) {
+                Thread.sleep(POLL_DELAY);
+            }
+            Path downloadedFile = leecherFolder.resolve(file.getFileName());
+            assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(downloadedFile));
+        }
+    }
+
+    @Test(timeout = DOWNLOAD_TIMEOUT)
+    public void testPiecePickerUsed() throws IOException, InterruptedException {
+        Path leecherFolder = temporaryFolder.newFolder().toPath();
+        AtomicInteger pickCount = new AtomicInteger(0);
+        try (TorrentClient leecher = new TorrentClient(leecherFolder, "localhost")) {
+            leecher.setPiecePicker((availability, wanted) -> {
+                pickCount.incrementAndGet();
+                return new SequentialPiecePicker().order(availability, wanted);
+            });
+            assertDownloaded(leecher, leecherFolder);
+        }
+        assertTrue(pickCount.get() > 0);
+    }
+
+    @Test(timeout = DOWNLOAD_TIMEOUT)
+    public void testMemoryMappedDownload() throws IOException, InterruptedException {
+        Path leecherFolder = temporaryFolder.newFolder().toPath();
+        try (TorrentClient leecher = new TorrentClient(leecherFolder, "localhost")) {
+            leecher.setMemoryMappedDownloads(true);
+            assertDownloaded(leecher, leecherFolder);
+        }
+    }
+
+    @Test(timeout = DOWNLOAD_TIMEOUT)
+    public void testStatQueries() throws IOException {
+        try (TorrentServer tracker = new TorrentServer();
+             TorrentClient seeder = new TorrentClient(temporaryFolder.newFolder().toPath(), "localhost");
+             TorrentClient leecher = new TorrentClient(temporaryFolder.newFolder().toPath(), "localhost")) {
+            tracker.start();
+            int id = seeder.addFile(newFile("stat.bin", ClientProtocol.PART_SIZE * (PARTS_IN_FILE - 1) + 1));
+            // the seeder is not peering yet, so the leecher has none of the parts
+            leecher.startPeering(LEECHER_PORT);
+            leecher.getFile(id);
+            try (Connection toLeecher = new Connection("localhost", LEECHER_PORT)) {
+                PartSet leecherParts = ClientProtocol.makeStatBitmapQuery(toLeecher.inputStream,
+                        toLeecher.outputStream, id, PARTS_IN_FILE);
+                assertEquals(PARTS_IN_FILE, leecherParts.partCount());
+                assertEquals(0, leecherParts.presentCount());
+            }
+            seeder.startPeering(SEEDER_PORT);
+            try (Connection toSeeder = new Connection("localhost", SEEDER_PORT)) {
+                PartSet seederParts = ClientProtocol.makeStatBitmapQuery(toSeeder.inputStream,
+                        toSeeder.outputStream, id, PARTS_IN_FILE);
+                assertTrue(seederParts.isFull());
+                assertEquals(Arrays.asList(0, 1), ClientProtocol.makeStatQuery(toSeeder.inputStream,
+                        toSeeder.outputStream, id));
+            }
+        }
+    }
+
+    @Test(timeout = DOWNLOAD_TIMEOUT)
+    public void testGetRange() throws IOException {
+        int offset = ClientProtocol.BLOCK_SIZE + 1;
+        int length = ClientProtocol.BLOCK_SIZE;
+        try (TorrentServer tracker = new TorrentServer();
+             TorrentClient seeder = new TorrentClient(temporaryFolder.newFolder().toPath(), "localhost")) {
+            tracker.start();
+            Path file = newFile("ranges.bin", offset + length);
+            int id = seeder.addFile(file);
+            seeder.startPeering(SEEDER_PORT);
+            try (Connection connection = new Connection("localhost", SEEDER_PORT)) {
+                ClientProtocol.makeGetRangeRequest(connection.outputStream, id, 0, offset, length);
+                assertEquals(ClientProtocol.NOT_CHOKED, ClientProtocol.readGetRangeHeader(connection.inputStream));
+                byte[] range = new byte[length];
+                ClientProtocol.readGetRangeResponse(connection.inputStream, range, length);
+                assertArrayEquals(Arrays.copyOfRange(Files.readAllBytes(file), offset, offset + length), range);
+
+                // the end of the range overflows an int, the seeder drops the connection
+                ClientProtocol.makeGetRangeRequest(connection.outputStream, id, 0, Integer.MAX_VALUE, length);
+                assertEquals(-1, connection.inputStream.read());
+            }
+        }
+    }
+
+    /**
+     * Downloads a file from a seeder with the leecher, which must not be peering yet.
+     */
+    private void assertDownloaded(TorrentClient leecher, Path leecherFolder)
+            throws IOException, InterruptedException {
+        try (TorrentServer tracker = new TorrentServer();
+             TorrentClient seeder = new TorrentClient(temporaryFolder.newFolder().toPath(), "localhost")) {
+            tracker.start();
+            Path file = newFile("downloaded.bin", ClientProtocol.PART_SIZE * (PARTS_IN_FILE - 1) + 1);
+            int id = seeder.addFile(file);
+            seeder.startPeering(SEEDER_PORT);
+            leecher.startPeering(LEECHER_PORT);
+            leecher.getFile(id);
+            while (!leecher.getFilesInfo().get(0).isFinished) {
+                Thread.sleep(POLL_DELAY);
+            }
+            Path downloadedFile = leecherFolder.resolve(file.getFileName());
+            assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(downloadedFile));
+        }
+    }
+
+    private static void announce(int port, int... fileIds) throws IOException {
+        try (Connection connection = new Connection("localhost", TrackerProtocol.SERVER_PORT)) {
+            assertTrue(TrackerProtocol.makeUpdateQuery(connection.inputStream, connection.outputStream,
+                    port, fileIds));
+        }
+    }
+
+    private static List<Integer> seederPorts(TorrentClient client, int fileId) throws IOException {
+        return client.fileSeeders(fileId).stream().map(entry -> entry.port).collect(Collectors.toList());
+    }
+
+    private Path newFile(String fileName) throws IOException {
+        Path file = temporaryFolder.newFile(fileName).toPath();
+        Files.write(file, fileName.getBytes("UTF-8"));
+        return file;
+    }
+
+    /**
+     * @return file of the given size filled with a pattern that differs between the parts
+     */
+    private Path newFile(String fileName, int size) throws IOException {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i / ClientProtocol.BLOCK_SIZE + i);
+        }
+        Path file = temporaryFolder.newFile(fileName).toPath();
+        Files.write(file, content);
+        return file;
+    }
+
+    private static List<String> fileNames(List<TrackerProtocol.TrackerFileEntry> entries) {
+        return entries.stream().map(entry -> entry.fileName).collect(Collectors.toList());
+    }
+
+    /**
+     * Peer that answers every exchange with the given peers. It claims to have all the parts of a file
+     * and serves zeros instead of their content, or refuses subscriptions if it is given no parts.
+     */
+    private static final class StubPeer implements Closeable {
+        private final ServerSocket server;
+        private final int partCount;
+        private final List<TrackerProtocol.ClientEntry> peers;
+        private final ExecutorService threads = Executors.newCachedThreadPool();
+        private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+        private final AtomicLong servedBytes = new AtomicLong(0);
+
+        private StubPeer(int port, int partCount, TrackerProtocol.ClientEntry... peers) throws IOException {
+            server = new ServerSocket(port);
+            this.partCount = partCount;
+            this.peers = Arrays.asList(peers);
+            threads.submit(this::acceptPeers);
+        }
+
+        private long getServedBytes() {
+            return servedBytes.get();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            threads.shutdownNow();
+        }
+
+        private void acceptPeers() {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    sockets.add(socket);
+                    threads.submit(() -> serve(socket));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                 DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream())) {
+                while (true) {
+                    switch (ClientProtocol.getQueryType(inputStream)) {
+                        case ClientProtocol.PEX_QUERY:
+                            ClientProtocol.getPexQueryData(inputStream);
+                            ClientProtocol.pexQueryResponse(outputStream, peers);
+                            break;
+
+                        case ClientProtocol.SUBSCRIBE_QUERY:
+                            if (partCount == 0) {
+                                return;
+                            }
+                            ClientProtocol.getStatQueryId(inputStream);
+                            ClientProtocol.subscribeQueryResponse(outputStream, new PartSet(partCount, true));
+                            inputStream.read(); // nothing is pushed until the subscriber leaves
+                            return;
+
+                        case ClientProtocol.GET_RANGE_QUERY:
+                            ClientProtocol.GetRangeQueryData range =
+                                    ClientProtocol.getGetRangeQueryData(inputStream);
+                            ClientProtocol.getRangeUnchokedHeader(outputStream);
+                            outputStream.write(new byte[range.length]);
+                            outputStream.flush();
+                            servedBytes.addAndGet(range.length);
+                            break;
+
+                        default:
+                            return;
+                    }
+                }
+            } catch (IOException ignored) {
+                // the peer has closed the connection
+            } finally {
+                sockets.remove(socket);
+            }
+        }
+    }
+}
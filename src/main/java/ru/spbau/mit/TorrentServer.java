@@ -6,7 +6,9 @@ import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -16,75 +18,366 @@ import static ru.spbau.mit.TrackerProtocol.TrackerFileEntry;
 
 public class TorrentServer implements Closeable {
     public static final String FILE_LIST_FILENAME = "file_list.cfg";
+    private static final int FILE_LIST_MAGIC = 0xF11E_7000;
+    private static final int FILE_LIST_VERSION = 1;
+    private static final int FILE_LIST_HEADER_SIZE = 8;
+    private static final String CATALOG_LOG_FILENAME = "file_list.log";
+    private static final long CATALOG_LOG_COMPACTION_SIZE = 1024 * 1024;
+    private static final long CLIENT_TIMEOUT = 2 * TrackerProtocol.TIME_BETWEEN_UPDATE_QUERIES;
+    private static final long EXPIRY_TICK = 1000;
 
-    private final Set<TrackerFileEntry> files = ConcurrentHashMap.newKeySet();
+    private static final CompletableFuture<Void> WRITTEN = CompletableFuture.completedFuture(null);
+
+    private final Map<Integer, TrackerFileEntry> files = new ConcurrentHashMap<>();
+    // uploads whose catalog records are not durable yet, published to files in the order of their ids
+    private final TreeMap<Integer, TrackerFileEntry> unpublishedFiles = new TreeMap<>();
+    private int nextFileId;
     private ServerSocket serverSocket = null;
     private final ExecutorService executorService = Executors.newCachedThreadPool();
-    private final Map<Integer, Set<TrackerProtocol.ClientEntry>> fileSources = new ConcurrentHashMap<>();
-    private final Set<TrackerProtocol.ClientEntry> clients = ConcurrentHashMap.newKeySet();
-    private final Map<TrackerProtocol.ClientEntry, TimerTask> disconnectTasks = new ConcurrentHashMap<>();
+    private final PeerRegistry peerRegistry = new PeerRegistry();
+    private final ExpiryWheel<Long> expiryWheel =
+            new ExpiryWheel<>(EXPIRY_TICK, CLIENT_TIMEOUT, System.currentTimeMillis());
     private final Timer disconnectTimer = new Timer();
+    private final boolean useSelector;
+    private TrackerSelectorEngine selectorEngine = null;
+    private final AppendLog catalogLog;
+    // replaced by a longer copy on every upload
+    private volatile EncodedCatalog encodedCatalog;
 
     public TorrentServer() throws IOException {
+        this(false);
+    }
+
+    /**
+     * @param useSelector if true, clients are served by a fixed set of selector event loops
+     *                    instead of a thread per connection
+     */
+    public TorrentServer(boolean useSelector) throws IOException {
+        this.useSelector = useSelector;
         Path path = Paths.get(FILE_LIST_FILENAME);
         if (Files.notExists(path)) {
             Files.createFile(path);
         }
 
-        try (DataInputStream inputStream = new DataInputStream(Files.newInputStream(path))) {
-            while (true) {
-                try {
-                    files.add(new TrackerFileEntry(inputStream.readInt(), inputStream.readUTF(),
-                            inputStream.readLong()));
-                } catch (EOFException e) {
-                    break;
-                }
-            }
+        for (TrackerFileEntry entry : readFileList(path)) {
+            files.put(entry.id, entry);
         }
+        catalogLog = new AppendLog(Paths.get(CATALOG_LOG_FILENAME), this::applyCatalogRecord,
+                this::writeSnapshot, CATALOG_LOG_COMPACTION_SIZE);
+        // ids of failed uploads are not reused, so the number of files may be less than the next id
+        nextFileId = files.keySet().stream().mapToInt(Integer::intValue).max().orElse(-1) + 1;
+        encodedCatalog = EncodedCatalog.of(new TreeMap<>(files).values());
     }
 
-    public void start() {
-        executorService.submit(new ClientAcceptor());
+    public void start() throws IOException {
+        disconnectTimer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                expiryWheel.advance(System.currentTimeMillis(), TorrentServer.this::expireClient);
+            }
+        }, EXPIRY_TICK, EXPIRY_TICK);
+        if (useSelector) {
+            selectorEngine = new TrackerSelectorEngine(this, TrackerProtocol.SERVER_PORT,
+                    Runtime.getRuntime().availableProcessors());
+            selectorEngine.start(executorService);
+        } else {
+            // bound before start returns, so clients can connect right away
+            serverSocket = new ServerSocket(TrackerProtocol.SERVER_PORT);
+            executorService.submit(new ClientAcceptor());
+        }
     }
 
     @Override
     public void close() throws IOException {
-        serverSocket.close();
+        if (selectorEngine != null) {
+            selectorEngine.close();
+        }
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
         executorService.shutdownNow();
-        Path path = Paths.get(FILE_LIST_FILENAME);
         disconnectTimer.cancel();
+        catalogLog.close();
+    }
+
+    public void join() throws InterruptedException {
+        executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
 
-        try (DataOutputStream outputStream = new DataOutputStream(Files.newOutputStream(path))) {
-            for (TrackerFileEntry entry : files) {
-                outputStream.writeInt(entry.id);
-                outputStream.writeUTF(entry.fileName);
-                outputStream.writeLong(entry.size);
+    //FILE LIST
+    // <FILE_LIST_MAGIC: Int> <FILE_LIST_VERSION: Int> (<file entry>)*
+    // file entry: <id: Int> <name: String> <size: Long> <part hashes as in the hashes query>
+    // the magic is negative, so a list of the first versions, which starts with an id, is told apart;
+    // such a list has no header and no part hashes: (<id: Int> <name: String> <size: Long>)*
+    private static List<TrackerFileEntry> readFileList(Path path) throws IOException {
+        byte[] content = Files.readAllBytes(path);
+        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(content));
+        if (content.length >= FILE_LIST_HEADER_SIZE && stream.readInt() == FILE_LIST_MAGIC) {
+            int version = stream.readInt();
+            if (version != FILE_LIST_VERSION) {
+                throw new IOException("Unsupported file list version: " + version);
             }
+            return readFileEntries(stream, true);
         }
+        return readFileEntries(new DataInputStream(new ByteArrayInputStream(content)), false);
+    }
 
+    /**
+     * Reads the entries up to the end of the stream, failing on any entry that does not fit the layout.
+     */
+    private static List<TrackerFileEntry> readFileEntries(DataInputStream stream, boolean withPartHashes)
+            throws IOException {
+        List<TrackerFileEntry> entries = new ArrayList<>();
+        while (stream.available() > 0) {
+            TrackerFileEntry entry = withPartHashes ? readFileEntry(stream)
+                    : new TrackerFileEntry(stream.readInt(), stream.readUTF(), stream.readLong());
+            int partCount = (int) Math.ceil(1.0 * entry.size / ClientProtocol.PART_SIZE);
+            if (entry.id < 0 || entry.size < 0
+                    || entry.partHashes.length != 0 && entry.partHashes.length != partCount) {
+                throw new IOException("Malformed file list entry: " + entry.id);
+            }
+            entries.add(entry);
+        }
+        return entries;
     }
 
-    public void join() throws InterruptedException {
-        executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    private static TrackerFileEntry readFileEntry(DataInputStream stream) throws IOException {
+        return new TrackerFileEntry(stream.readInt(), stream.readUTF(), stream.readLong(),
+                TrackerProtocol.readPartHashes(stream));
+    }
+
+    private static void writeFileEntry(DataOutputStream stream, TrackerFileEntry entry) throws IOException {
+        stream.writeInt(entry.id);
+        stream.writeUTF(entry.fileName);
+        stream.writeLong(entry.size);
+        TrackerProtocol.writePartHashes(stream, entry.partHashes);
+    }
+
+    private void writeSnapshot() throws IOException {
+        Path path = Paths.get(FILE_LIST_FILENAME);
+        Path temporaryPath = Paths.get(FILE_LIST_FILENAME + ".tmp");
+        try (FileOutputStream fileStream = new FileOutputStream(temporaryPath.toFile());
+             DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(fileStream))) {
+            stream.writeInt(FILE_LIST_MAGIC);
+            stream.writeInt(FILE_LIST_VERSION);
+            List<TrackerFileEntry> unpublished;
+            synchronized (files) {
+                unpublished = new ArrayList<>(unpublishedFiles.values());
+            }
+            for (TrackerFileEntry entry : files.values()) {
+                writeFileEntry(stream, entry);
+            }
+            for (TrackerFileEntry entry : unpublished) {
+                writeFileEntry(stream, entry);
+            }
+            stream.flush();
+            fileStream.getChannel().force(true);
+        }
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //CATALOG LOG RECORDS
+    // file uploaded: <file entry as in the file list>
+    private void applyCatalogRecord(DataInputStream record) throws IOException {
+        TrackerFileEntry entry = readFileEntry(record);
+        files.put(entry.id, entry);
+    }
+
+    private static byte[] catalogRecord(TrackerFileEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeFileEntry(new DataOutputStream(bytes), entry);
+        return bytes.toByteArray();
     }
 
     private class ClientAcceptor implements Runnable {
         @Override
         public void run() {
-            try (ServerSocket serverSocket = new ServerSocket(TrackerProtocol.SERVER_PORT)) {
-                TorrentServer.this.serverSocket = serverSocket;
+            try {
                 while (!serverSocket.isClosed()) {
                     Socket client = serverSocket.accept();
                     executorService.submit(new ClientProcessor(client));
                 }
             } catch (IOException e) {
-                if (!e.getMessage().equals("socket closed")) {
+                if (!serverSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            } finally {
+                try {
+                    serverSocket.close();
+                } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
         }
     }
 
+    /**
+     * @return future completed when the response has been written, which only an upload does later,
+     *         after it is durable
+     */
+    CompletableFuture<Void> processQuery(int type, DataInputStream inputStream, DataOutputStream outputStream,
+                                         TrackerProtocol.ClientEntry clientEntry, Closeable connection)
+            throws IOException {
+        switch (type) {
+            case TrackerProtocol.LIST_QUERY:
+                TrackerProtocol.listQueryResponse(outputStream, encodedCatalog.getListResponse());
+                break;
+
+            case TrackerProtocol.LIST_SINCE_QUERY:
+                listSinceQueryResponse(outputStream, TrackerProtocol.getListSinceQueryVersion(inputStream));
+                break;
+
+            case TrackerProtocol.UPLOAD_QUERY:
+                return uploadQueryResponse(outputStream, addFile(TrackerProtocol.getUploadQueryData(inputStream)));
+
+            case TrackerProtocol.UPLOAD_HASHED_QUERY:
+                return uploadQueryResponse(outputStream,
+                        addFile(TrackerProtocol.getUploadHashedQueryData(inputStream)));
+
+            case TrackerProtocol.HASHES_QUERY:
+                TrackerFileEntry entry = files.get(TrackerProtocol.getHashesQueryFileId(inputStream));
+                TrackerProtocol.hashesQueryResponse(outputStream,
+                        entry == null ? new byte[0][] : entry.partHashes);
+                break;
+
+            case TrackerProtocol.SOURCES_QUERY:
+                int id = TrackerProtocol.getSourcesQueryFileId(inputStream);
+                TrackerProtocol.sourcesQueryResponse(outputStream, peerRegistry.getSources(id));
+                break;
+
+            case TrackerProtocol.SOURCES_SAMPLE_QUERY:
+                TrackerProtocol.SourcesQueryData sample = TrackerProtocol.getSourcesQueryData(inputStream);
+                TrackerProtocol.sourcesQueryResponse(outputStream,
+                        peerRegistry.sampleSources(sample.fileIds[0], sample.limit));
+                break;
+
+            case TrackerProtocol.SOURCES_SAMPLE_BATCH_QUERY:
+                TrackerProtocol.SourcesQueryData batch =
+                        TrackerProtocol.getSourcesSampleBatchQueryData(inputStream);
+                List<long[]> sources = new ArrayList<>();
+                for (int fileId : batch.fileIds) {
+                    sources.add(peerRegistry.sampleSources(fileId, batch.limit));
+                }
+                TrackerProtocol.sourcesBatchQueryResponse(outputStream, sources);
+                break;
+
+            case TrackerProtocol.UPDATE_QUERY:
+                TrackerProtocol.UpdateQueryData data = TrackerProtocol.getUpdateQueryData(inputStream);
+                clientEntry.lastUpdateQueryTime = System.currentTimeMillis();
+                clientEntry.port = data.port;
+                long peer = PeerRegistry.pack(clientEntry.ip, clientEntry.port);
+                peerRegistry.update(peer, data.fileIds, connection, clientEntry.lastUpdateQueryTime);
+                expiryWheel.touch(peer, clientEntry.lastUpdateQueryTime);
+                TrackerProtocol.updateQueryResponse(outputStream, true);
+                break;
+
+            case TrackerProtocol.UPDATE_DELTA_QUERY:
+                TrackerProtocol.UpdateDeltaQueryData delta = TrackerProtocol.getUpdateDeltaQueryData(inputStream);
+                clientEntry.lastUpdateQueryTime = System.currentTimeMillis();
+                clientEntry.port = delta.port;
+                peer = PeerRegistry.pack(clientEntry.ip, clientEntry.port);
+                boolean applied = peerRegistry.applyDelta(peer, delta.sequence, delta.addedIds, delta.removedIds,
+                        connection, clientEntry.lastUpdateQueryTime);
+                if (applied) {
+                    expiryWheel.touch(peer, clientEntry.lastUpdateQueryTime);
+                }
+                TrackerProtocol.updateDeltaQueryResponse(outputStream, applied);
+                break;
+
+            default:
+                throw new IllegalStateException("Unknown query type: " + type);
+        }
+        return WRITTEN;
+    }
+
+    private void listSinceQueryResponse(DataOutputStream outputStream, int version) throws IOException {
+        EncodedCatalog catalog = encodedCatalog;
+        if (version < 0 || version > catalog.version()) {
+            version = 0;
+        }
+        byte[] response = catalog.getListResponse();
+        int offset = catalog.getOffsetSince(version);
+        TrackerProtocol.listSinceQueryResponse(outputStream, catalog.version(), catalog.getCountSince(version),
+                response, offset, response.length - offset);
+    }
+
+    /**
+     * Writes the response on a pool thread, so that neither the catalog log writer nor a selector loop does.
+     */
+    private CompletableFuture<Void> uploadQueryResponse(DataOutputStream outputStream,
+                                                        CompletableFuture<Integer> fileId) {
+        return fileId.thenAcceptAsync(id -> {
+            try {
+                TrackerProtocol.uploadQueryResponse(outputStream, id);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executorService);
+    }
+
+    /**
+     * The file is listed only after the upload is durable in the catalog log;
+     * concurrent uploads share one fsync. If the record can not be written, the upload fails
+     * and its id is left unused.
+     *
+     * @return future of the file id, completed when the file is listed
+     */
+    private CompletableFuture<Integer> addFile(TrackerFileEntry entry) throws IOException {
+        CompletableFuture<Void> durable;
+        synchronized (files) {
+            entry.id = nextFileId;
+            byte[] record = catalogRecord(entry);
+            nextFileId++;
+            unpublishedFiles.put(entry.id, entry);
+            // appended under the lock, so the records are written in the order of the ids
+            durable = catalogLog.append(record);
+            // the log completes a failed record before writing the next ones, so a later upload,
+            // that publishes the earlier ones, never publishes this one
+            durable.whenComplete((ignored, e) -> {
+                if (e != null) {
+                    synchronized (files) {
+                        unpublishedFiles.remove(entry.id);
+                    }
+                }
+            });
+        }
+        return durable.thenApply(ignored -> {
+            publishFiles(entry.id);
+            return entry.id;
+        });
+    }
+
+    /**
+     * Lists the uploads up to the given one, the records before a durable one are durable too.
+     */
+    private void publishFiles(int lastId) {
+        synchronized (files) {
+            while (!unpublishedFiles.isEmpty() && unpublishedFiles.firstKey() <= lastId) {
+                TrackerFileEntry entry = unpublishedFiles.pollFirstEntry().getValue();
+                files.put(entry.id, entry);
+                try {
+                    encodedCatalog = encodedCatalog.with(entry);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by the expiry wheel; the client is kept if it has sent an update in the meantime.
+     */
+    private void expireClient(long peer) {
+        Closeable connection = peerRegistry.removeIfExpired(peer, System.currentTimeMillis() - CLIENT_TIMEOUT);
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     private class ClientProcessor implements Runnable {
         private final Socket client;
         private final TrackerProtocol.ClientEntry clientEntry;
@@ -101,59 +394,7 @@ public class TorrentServer implements Closeable {
                  DataOutputStream outputStream = new DataOutputStream(client.getOutputStream())) {
                 while (!client.isClosed()) {
                     int type = TrackerProtocol.getQueryType(inputStream);
-                    switch (type) {
-                        case TrackerProtocol.LIST_QUERY:
-                            TrackerProtocol.listQueryResponse(outputStream, files);
-                            break;
-
-                        case TrackerProtocol.UPLOAD_QUERY:
-                            TrackerFileEntry entry = TrackerProtocol.getUploadQueryData(inputStream);
-                            synchronized (files) {
-                                entry.id = files.size();
-                                files.add(entry);
-                            }
-                            TrackerProtocol.uploadQueryResponse(outputStream, entry.id);
-                            break;
-
-                        case TrackerProtocol.SOURCES_QUERY:
-                            int id = TrackerProtocol.getSourcesQueryFileId(inputStream);
-                            fileSources.putIfAbsent(id, ConcurrentHashMap.newKeySet());
-                            TrackerProtocol.sourcesQueryResponse(outputStream, fileSources.get(id));
-                            break;
-
-                        case TrackerProtocol.UPDATE_QUERY:
-                            TrackerProtocol.UpdateQueryData data = TrackerProtocol.getUpdateQueryData(inputStream);
-                            clientEntry.lastUpdateQueryTime = System.currentTimeMillis();
-                            clientEntry.port = data.port;
-                            TimerTask oldTask = disconnectTasks.get(clientEntry);
-                            if (oldTask != null) {
-                                oldTask.cancel();
-                            }
-                            disconnectTasks.remove(clientEntry);
-                            TimerTask task = new TimerTask() {
-                                @Override
-                                public void run() {
-                                    try {
-                                        client.close();
-                                        clients.remove(clientEntry);
-                                    } catch (IOException e) {
-                                        e.printStackTrace();
-                                    }
-                                }
-                            };
-                            disconnectTasks.put(clientEntry, task);
-                            disconnectTimer.schedule(task, 2 * TrackerProtocol.TIME_BETWEEN_UPDATE_QUERIES);
-                            clients.add(clientEntry);
-                            for (int fileId : data.fileIds) {
-                                fileSources.putIfAbsent(fileId, ConcurrentHashMap.newKeySet());
-                                fileSources.get(fileId).add(clientEntry);
-                            }
-                            TrackerProtocol.updateQueryResponse(outputStream, true);
-                            break;
-
-                        default:
-                            throw new IllegalStateException("Unknown query type: " + type);
-                    }
+                    processQuery(type, inputStream, outputStream, clientEntry, client).join();
                 }
             } catch (EOFException ignored) {
             } catch (Exception e) { // to print all the exceptions
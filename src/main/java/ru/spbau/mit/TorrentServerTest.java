@@ -6,6 +6,7 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.*;
+import java.net.Socket;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -29,8 +30,10 @@ import org.apache.commons.io.FileUtils;
 public class TorrentServerTest {
     private static final int CLIENT_CNT = 5;
     private static final int DEFAULT_PORT = 12345;
+    private static final int SELECTOR_TEST_PORT = DEFAULT_PORT + CLIENT_CNT;
     private static final int PARTS_IN_FILE = 30;
     private static final int PRINT_DELAY = 1000;
+    private static final long QUERY_TIMEOUT = 10000;
 
     @Rule
     public TemporaryFolder temporaryFolder = new TemporaryFolder();
@@ -100,6 +103,57 @@ public class TorrentServerTest {
                 thread.join();
             }
             threads.clear();
+            for (TorrentClient client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testServerQueriesWithSelector() throws IOException, InterruptedException, ExecutionException {
+        List<TorrentClient> clients = new ArrayList<>();
+        try (TorrentServer tracker = new TorrentServer(true)) {
+            tracker.start();
+            clients = getClients();
+            for (int i = 0; i < clients.size(); i++) {
+                clients.get(i).startPeering(SELECTOR_TEST_PORT + i);
+                assertEquals(i, clients.get(i).addFile(Paths.get(temporaryFolder.getRoot().getPath(),
+                        Integer.toString(i), i + ".txt")));
+                assertTrue(clients.get(i).update());
+            }
+            ExecutorService executorService = Executors.newCachedThreadPool();
+            List<Future<List<Integer>>> sources = new ArrayList<>();
+            for (int i = 0; i < clients.size(); i++) {
+                final int index = i;
+                final TorrentClient client = clients.get(index);
+                sources.add(executorService.submit(() -> client.fileSeeders(index).stream()
+                        .map(clientEntry -> clientEntry.port - SELECTOR_TEST_PORT)
+                        .collect(Collectors.toList())));
+            }
+            for (int i = 0; i < clients.size(); i++) {
+                assertEquals(Arrays.asList(i), sources.get(i).get());
+            }
+            executorService.shutdown();
+        } finally {
+            for (TorrentClient client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    @Test(timeout = QUERY_TIMEOUT)
+    public void testMalformedQueriesWithSelector() throws IOException {
+        try (TorrentServer tracker = new TorrentServer(true);
+             TorrentClient client = new TorrentClient(temporaryFolder.newFolder().toPath(), "localhost")) {
+            tracker.start();
+            try (Socket hugeCount = new Socket("localhost", TrackerProtocol.SERVER_PORT);
+                 Socket negativeCount = new Socket("localhost", TrackerProtocol.SERVER_PORT)) {
+                sendUpdateHeader(hugeCount, Integer.MAX_VALUE);
+                sendUpdateHeader(negativeCount, -1);
+                // the malformed query closes only its own connection
+                assertEquals(-1, negativeCount.getInputStream().read());
+                assertTrue(client.filesOnServer().isEmpty());
+            }
         }
     }
 
@@ -128,6 +182,31 @@ public class TorrentServerTest {
         }
     }
 
+    @Test
+    public void testIdsAfterGap() throws IOException {
+        // a list of the first versions with the id of a failed upload missing
+        int lastId = 2;
+        List<Integer> ids = Arrays.asList(0, lastId);
+        try (FileOutputStream fileStream = new FileOutputStream(TorrentServer.FILE_LIST_FILENAME);
+             DataOutputStream stream = new DataOutputStream(fileStream)) {
+            for (int id : ids) {
+                stream.writeInt(id);
+                stream.writeUTF(id + ".txt");
+                stream.writeLong(id);
+            }
+        }
+        try (TorrentServer server = new TorrentServer();
+             TorrentClient client = new TorrentClient(temporaryFolder.newFolder().toPath(), "localhost")) {
+            server.start();
+            assertEquals(ids, client.filesOnServer().stream()
+                    .map(entry -> entry.id).collect(Collectors.toList()));
+            Path file = temporaryFolder.newFile("new.txt").toPath();
+            assertEquals(lastId + 1, client.addFile(file));
+            assertEquals(Arrays.asList(0, lastId, lastId + 1), client.filesOnServer().stream()
+                    .map(entry -> entry.id).collect(Collectors.toList()));
+        }
+    }
+
     @Test
     public void testTracker() throws InterruptedException, IOException {
         try (TorrentServer server = new TorrentServer()) {
@@ -166,6 +245,9 @@ public class TorrentServerTest {
                 Path second = Paths.get(tempPath, Integer.toString(i), "newFile");
                 assertTrue(FileUtils.contentEquals(first.toFile(), second.toFile()));
             }
+            for (TorrentClient client : clients) {
+                client.close();
+            }
         }
     }
 
@@ -199,6 +281,14 @@ public class TorrentServerTest {
         }
     }
 
+    private static void sendUpdateHeader(Socket socket, int count) throws IOException {
+        DataOutputStream stream = new DataOutputStream(socket.getOutputStream());
+        stream.writeByte(TrackerProtocol.UPDATE_QUERY);
+        stream.writeShort(DEFAULT_PORT);
+        stream.writeInt(count);
+        stream.flush();
+    }
+
     private void fillFile(File file, byte fileByte) throws IOException {
         DataOutputStream stream = new DataOutputStream(new FileOutputStream(file));
         byte[] block = new byte[ClientProtocol.PART_SIZE];
@@ -10,7 +10,8 @@ public final class TorrentTrackerMain {
     }
 
     public static void main(String[] args) throws IOException, InterruptedException {
-        TorrentServer server = new TorrentServer();
+        boolean useSelector = args.length > 0 && args[0].equals("nio");
+        TorrentServer server = new TorrentServer(useSelector);
         server.start();
         server.join();
     }
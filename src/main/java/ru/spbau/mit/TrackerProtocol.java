@@ -4,10 +4,13 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 /**
  * Created by Сева on 26.03.2016.
@@ -17,16 +20,24 @@ public final class TrackerProtocol {
     public static final int UPLOAD_QUERY = 2;
     public static final int SOURCES_QUERY = 3;
     public static final int UPDATE_QUERY = 4;
+    public static final int UPLOAD_HASHED_QUERY = 5;
+    public static final int HASHES_QUERY = 6;
+    public static final int LIST_SINCE_QUERY = 7;
+    public static final int UPDATE_DELTA_QUERY = 8;
+    public static final int SOURCES_SAMPLE_QUERY = 10;
+    public static final int SOURCES_SAMPLE_BATCH_QUERY = 11;
     public static final int SERVER_PORT = 8081;
 
     public static final int TIME_BETWEEN_UPDATE_QUERIES = 60 * 1000;
-    private static final int IP_LENGTH_IN_BYTES = 4;
+    static final int IP_LENGTH_IN_BYTES = 4;
+    private static final int MAX_PREALLOCATED_IDS = 1024;
 
     public static class TrackerFileEntry {
         // CHECKSTYLE.OFF: VisibilityModifier
         public String fileName;
         public int id;
         public long size;
+        public byte[][] partHashes = new byte[0][]; // empty if the file was uploaded without hashes
         // CHECKSTYLE.ON: VisibilityModifier
 
         TrackerFileEntry(int id, String fileName, long size) {
@@ -35,6 +46,11 @@ public final class TrackerProtocol {
             this.size = size;
         }
 
+        TrackerFileEntry(int id, String fileName, long size, byte[][] partHashes) {
+            this(id, fileName, size);
+            this.partHashes = partHashes;
+        }
+
         @Override
         public boolean equals(Object obj) {
             return obj instanceof TrackerFileEntry && ((TrackerFileEntry) obj).id == id;
@@ -115,20 +131,80 @@ public final class TrackerProtocol {
         return inputStream.readInt();
     }
 
+    //UPLOAD HASHED QUERY
+    // <5: Byte> <name: String> <size: Long> <count: Int> (<hash: 32 Bytes>)* -> <id: Int>
+    // count must be equal to the number of parts, hash is SHA-256 of the part
+    public static TrackerFileEntry getUploadHashedQueryData(DataInputStream inputStream) throws IOException {
+        String fileName = inputStream.readUTF();
+        long size = inputStream.readLong();
+        byte[][] hashes = readPartHashes(inputStream);
+        if (hashes.length != (int) Math.ceil(1.0 * size / ClientProtocol.PART_SIZE)) {
+            throw new IllegalStateException("Wrong number of part hashes: " + hashes.length);
+        }
+        return new TrackerFileEntry(-1, fileName, size, hashes);
+    }
+
+    public static int makeUploadHashedQuery(DataInputStream inputStream, DataOutputStream outputStream,
+                                            String fileName, long size, byte[][] hashes) throws IOException {
+        outputStream.writeByte(UPLOAD_HASHED_QUERY);
+        outputStream.writeUTF(fileName);
+        outputStream.writeLong(size);
+        writePartHashes(outputStream, hashes);
+        outputStream.flush();
+        return inputStream.readInt();
+    }
+
+    //HASHES QUERY
+    // <6: Byte> <id: Int> -> <count: Int> (<hash: 32 Bytes>)*, count is 0 for unknown files
+    public static int getHashesQueryFileId(DataInputStream inputStream) throws IOException {
+        return inputStream.readInt();
+    }
+
+    public static void hashesQueryResponse(DataOutputStream outputStream, byte[][] hashes) throws IOException {
+        writePartHashes(outputStream, hashes);
+        outputStream.flush();
+    }
+
+    public static byte[][] makeHashesQuery(DataInputStream inputStream, DataOutputStream outputStream,
+                                           int fileId) throws IOException {
+        outputStream.writeByte(HASHES_QUERY);
+        outputStream.writeInt(fileId);
+        outputStream.flush();
+        return readPartHashes(inputStream);
+    }
+
+    public static void writePartHashes(DataOutputStream outputStream, byte[][] hashes) throws IOException {
+        outputStream.writeInt(hashes.length);
+        for (byte[] hash : hashes) {
+            outputStream.write(hash);
+        }
+    }
+
+    public static byte[][] readPartHashes(DataInputStream inputStream) throws IOException {
+        int count = inputStream.readInt();
+        if (count < 0) {
+            throw new IllegalStateException("Negative number of part hashes: " + count);
+        }
+        List<byte[]> hashes = new ArrayList<>(); // count is not trusted for preallocation
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[PartHasher.HASH_LENGTH];
+            inputStream.readFully(hash);
+            hashes.add(hash);
+        }
+        return hashes.toArray(new byte[count][]);
+    }
+
     //SOURCES QUERY
+    // <3: Byte> <id: Int> -> <count: Int> (<ip: 4 Bytes> <port: Short>)*
     public static int getSourcesQueryFileId(DataInputStream inputStream) throws IOException {
         return inputStream.readInt();
     }
 
-    public static void sourcesQueryResponse(DataOutputStream outputStream,
-                                            Set<ClientEntry> clients) throws IOException {
-        outputStream.writeInt(clients.size());
-        for (ClientEntry client : clients) {
-            for (int i = 0; i < IP_LENGTH_IN_BYTES; i++) {
-                outputStream.writeByte(client.ip[i]);
-            }
-            outputStream.writeShort(client.port);
-        }
+    /**
+     * @param peers addresses packed by {@link PeerRegistry#pack}
+     */
+    public static void sourcesQueryResponse(DataOutputStream outputStream, long[] peers) throws IOException {
+        writeSources(outputStream, peers);
         outputStream.flush();
     }
 
@@ -137,6 +213,27 @@ public final class TrackerProtocol {
         outputStream.writeByte(SOURCES_QUERY);
         outputStream.writeInt(fileId);
         outputStream.flush();
+        return readSources(inputStream);
+    }
+
+    private static void writeSources(DataOutputStream outputStream, long[] peers) throws IOException {
+        outputStream.writeInt(peers.length);
+        for (long peer : peers) {
+            outputStream.writeInt(PeerRegistry.unpackIp(peer));
+            outputStream.writeShort(PeerRegistry.unpackPort(peer));
+        }
+    }
+
+    static void writeClientEntries(DataOutputStream outputStream,
+                                   Collection<ClientEntry> clients) throws IOException {
+        outputStream.writeInt(clients.size());
+        for (ClientEntry client : clients) {
+            outputStream.write(client.ip, 0, IP_LENGTH_IN_BYTES);
+            outputStream.writeShort(client.port);
+        }
+    }
+
+    static List<ClientEntry> readSources(DataInputStream inputStream) throws IOException {
         int count = inputStream.readInt();
         List<ClientEntry> entries = new ArrayList<>();
         byte[] ip = new byte[IP_LENGTH_IN_BYTES];
@@ -150,15 +247,68 @@ public final class TrackerProtocol {
         return entries;
     }
 
+    //SOURCES SAMPLE QUERY
+    // <10: Byte> <id: Int> <limit: Int> -> <sources as in SOURCES response>
+    // at most limit sources in random order
+    public static SourcesQueryData getSourcesQueryData(DataInputStream inputStream) throws IOException {
+        int fileId = inputStream.readInt();
+        return new SourcesQueryData(new int[] {fileId}, inputStream.readInt());
+    }
+
+    public static List<ClientEntry> makeSourcesSampleQuery(DataInputStream inputStream,
+                                                           DataOutputStream outputStream,
+                                                           int fileId, int limit) throws IOException {
+        outputStream.writeByte(SOURCES_SAMPLE_QUERY);
+        outputStream.writeInt(fileId);
+        outputStream.writeInt(limit);
+        outputStream.flush();
+        return readSources(inputStream);
+    }
+
+    //SOURCES SAMPLE BATCH QUERY
+    // <11: Byte> <limit: Int> <count: Int> (<id: Int>)* -> (<sources as in SOURCES SAMPLE response>)*,
+    // one for every requested id
+    public static SourcesQueryData getSourcesSampleBatchQueryData(DataInputStream inputStream)
+            throws IOException {
+        int limit = inputStream.readInt();
+        return new SourcesQueryData(readIds(inputStream), limit);
+    }
+
+    /**
+     * @param sources peer addresses packed by {@link PeerRegistry#pack} for every requested id
+     */
+    public static void sourcesBatchQueryResponse(DataOutputStream outputStream,
+                                                 List<long[]> sources) throws IOException {
+        for (long[] peers : sources) {
+            writeSources(outputStream, peers);
+        }
+        outputStream.flush();
+    }
+
+    public static Map<Integer, List<ClientEntry>> makeSourcesSampleBatchQuery(DataInputStream inputStream,
+                                                                             DataOutputStream outputStream,
+                                                                             int[] fileIds,
+                                                                             int limit) throws IOException {
+        outputStream.writeByte(SOURCES_SAMPLE_BATCH_QUERY);
+        outputStream.writeInt(limit);
+        writeIds(outputStream, fileIds);
+        outputStream.flush();
+        return readBatchSources(inputStream, fileIds);
+    }
+
+    private static Map<Integer, List<ClientEntry>> readBatchSources(DataInputStream inputStream,
+                                                                    int[] fileIds) throws IOException {
+        Map<Integer, List<ClientEntry>> sources = new HashMap<>();
+        for (int fileId : fileIds) {
+            sources.put(fileId, readSources(inputStream));
+        }
+        return sources;
+    }
+
     //UPDATE QUERY
     public static UpdateQueryData getUpdateQueryData(DataInputStream inputStream) throws IOException {
         short port = inputStream.readShort();
-        int count = inputStream.readInt();
-        int[] ids = new int[count];
-        for (int i = 0; i < count; i++) {
-            ids[i] = inputStream.readInt();
-        }
-        return new UpdateQueryData(port, ids);
+        return new UpdateQueryData(port, readIds(inputStream));
     }
 
     public static void updateQueryResponse(DataOutputStream outputStream, boolean b) throws IOException {
@@ -178,18 +328,77 @@ public final class TrackerProtocol {
         return inputStream.readBoolean();
     }
 
-    //LIST QUERY
-    public static void listQueryResponse(DataOutputStream outputStream,
-                                         Set<TrackerFileEntry> files) throws IOException {
-        outputStream.writeInt(files.size());
-        for (TrackerFileEntry entry : files) {
-            outputStream.writeInt(entry.id);
-            outputStream.writeUTF(entry.fileName);
-            outputStream.writeLong(entry.size);
+    //UPDATE DELTA QUERY
+    // <8: Byte> <port: Short> <sequence: Int> <count: Int> (<added id: Int>)* <count: Int> (<removed id: Int>)*
+    //     -> <applied: Boolean>
+    // ids are relative to the last applied announce of the peer: a full UPDATE has sequence 0,
+    // every delta has the next one; false is a resync request, the client has to send a full UPDATE
+    public static UpdateDeltaQueryData getUpdateDeltaQueryData(DataInputStream inputStream) throws IOException {
+        short port = inputStream.readShort();
+        int sequence = inputStream.readInt();
+        int[] addedIds = readIds(inputStream);
+        int[] removedIds = readIds(inputStream);
+        return new UpdateDeltaQueryData(port, sequence, addedIds, removedIds);
+    }
+
+    public static void updateDeltaQueryResponse(DataOutputStream outputStream,
+                                                boolean applied) throws IOException {
+        outputStream.writeBoolean(applied);
+        outputStream.flush();
+    }
+
+    public static boolean makeUpdateDeltaQuery(DataInputStream inputStream, DataOutputStream outputStream,
+                                               int port, int sequence, int[] addedIds,
+                                               int[] removedIds) throws IOException {
+        outputStream.writeByte(UPDATE_DELTA_QUERY);
+        outputStream.writeShort(port);
+        outputStream.writeInt(sequence);
+        writeIds(outputStream, addedIds);
+        writeIds(outputStream, removedIds);
+        outputStream.flush();
+        return inputStream.readBoolean();
+    }
+
+    private static int[] readIds(DataInputStream inputStream) throws IOException {
+        int count = inputStream.readInt();
+        if (count < 0) {
+            throw new IllegalStateException("Negative number of ids: " + count);
         }
+        // count is not trusted for preallocation, the array grows as the ids arrive
+        int[] ids = new int[Math.min(count, MAX_PREALLOCATED_IDS)];
+        for (int i = 0; i < count; i++) {
+            if (i == ids.length) {
+                ids = Arrays.copyOf(ids, (int) Math.min(count, 2L * ids.length));
+            }
+            ids[i] = inputStream.readInt();
+        }
+        return ids;
+    }
+
+    private static void writeIds(DataOutputStream outputStream, int[] ids) throws IOException {
+        outputStream.writeInt(ids.length);
+        for (int id : ids) {
+            outputStream.writeInt(id);
+        }
+    }
+
+    //LIST QUERY
+    // <1: Byte> -> <count: Int> (<id: Int> <name: String> <size: Long>)*
+
+    /**
+     * @param response count and entries encoded by {@link #writeListEntry}, sent with a single write
+     */
+    public static void listQueryResponse(DataOutputStream outputStream, byte[] response) throws IOException {
+        outputStream.write(response);
         outputStream.flush();
     }
 
+    public static void writeListEntry(DataOutputStream outputStream, TrackerFileEntry entry) throws IOException {
+        outputStream.writeInt(entry.id);
+        outputStream.writeUTF(entry.fileName);
+        outputStream.writeLong(entry.size);
+    }
+
     public static List<TrackerFileEntry> makeListQuery(DataInputStream inputStream,
                                                 DataOutputStream outputStream) throws IOException {
         outputStream.writeByte(LIST_QUERY);
@@ -203,6 +412,80 @@ public final class TrackerProtocol {
         return entries;
     }
 
+    //LIST SINCE QUERY
+    // <7: Byte> <version: Int> -> <version: Int> <count: Int> (<id: Int> <name: String> <size: Long>)*
+    // version is the id after the last file, the response lists the files with id >= the requested version,
+    // or all the files if the requested version is newer than the tracker's one
+    public static int getListSinceQueryVersion(DataInputStream inputStream) throws IOException {
+        return inputStream.readInt();
+    }
+
+    /**
+     * @param entries entries encoded by {@link #writeListEntry}
+     */
+    public static void listSinceQueryResponse(DataOutputStream outputStream, int version, int count,
+                                              byte[] entries, int offset, int length) throws IOException {
+        ByteBuffer response = ByteBuffer.allocate(2 * Integer.BYTES + length);
+        response.putInt(version).putInt(count).put(entries, offset, length);
+        outputStream.write(response.array());
+        outputStream.flush();
+    }
+
+    public static ListSinceQueryData makeListSinceQuery(DataInputStream inputStream, DataOutputStream outputStream,
+                                                        int version) throws IOException {
+        outputStream.writeByte(LIST_SINCE_QUERY);
+        outputStream.writeInt(version);
+        outputStream.flush();
+        int newVersion = inputStream.readInt();
+        int count = inputStream.readInt();
+        List<TrackerFileEntry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            entries.add(new TrackerFileEntry(inputStream.readInt(), inputStream.readUTF(),
+                    inputStream.readLong()));
+        }
+        return new ListSinceQueryData(newVersion, entries);
+    }
+
+    public static class ListSinceQueryData {
+        // CHECKSTYLE.OFF: VisibilityModifier
+        public final int version;
+        public final List<TrackerFileEntry> files;
+        // CHECKSTYLE.ON: VisibilityModifier
+
+        public ListSinceQueryData(int version, List<TrackerFileEntry> files) {
+            this.version = version;
+            this.files = files;
+        }
+    }
+
+    public static class SourcesQueryData {
+        // CHECKSTYLE.OFF: VisibilityModifier
+        public final int[] fileIds;
+        public final int limit;
+        // CHECKSTYLE.ON: VisibilityModifier
+
+        public SourcesQueryData(int[] fileIds, int limit) {
+            this.fileIds = fileIds;
+            this.limit = limit;
+        }
+    }
+
+    public static class UpdateDeltaQueryData {
+        // CHECKSTYLE.OFF: VisibilityModifier
+        public final int port;
+        public final int sequence;
+        public final int[] addedIds;
+        public final int[] removedIds;
+        // CHECKSTYLE.ON: VisibilityModifier
+
+        public UpdateDeltaQueryData(int port, int sequence, int[] addedIds, int[] removedIds) {
+            this.port = port;
+            this.sequence = sequence;
+            this.addedIds = addedIds;
+            this.removedIds = removedIds;
+        }
+    }
+
     public static class UpdateQueryData {
         // CHECKSTYLE.OFF: VisibilityModifier
         public final int port;
@@ -0,0 +1,307 @@
+package ru.spbau.mit;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Non-blocking tracker front end: a fixed number of selector loops decode
+ * {@link TrackerProtocol} frames as bytes arrive and hand complete queries to {@link TorrentServer}.
+ */
+class TrackerSelectorEngine implements Closeable {
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private final TorrentServer server;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private int nextLoop = 0;
+
+    TrackerSelectorEngine(TorrentServer server, int port, int loopCount) throws IOException {
+        this.server = server;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    void start(ExecutorService executorService) {
+        for (EventLoop loop : loops) {
+            executorService.submit(loop);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        for (EventLoop loop : loops) {
+            loop.selector.close();
+        }
+    }
+
+    /**
+     * Accepts the pending connections; a failure is reported and accepting is retried on the next selection,
+     * so that it does not stop the loop that owns the server channel.
+     */
+    private void accept() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeQuietly(channel);
+                continue;
+            }
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            loop.register(channel);
+        }
+    }
+
+    private static void closeQuietly(Closeable channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        // connections whose delayed responses have been written, to be flushed by the loop
+        private final Queue<Connection> respondedConnections = new ConcurrentLinkedQueue<>();
+
+        private EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        private void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        private void responded(Connection connection) {
+            respondedConnections.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    registerPendingChannels();
+                    flushRespondedConnections();
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        try {
+                            handleKey(key);
+                        } catch (CancelledKeyException ignored) { // the connection has been closed meanwhile
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException ignored) {
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void registerPendingChannels() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                Connection connection = new Connection(channel, this);
+                try {
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) { // closed before it has been registered
+                    closeQuietly(channel);
+                }
+            }
+        }
+
+        private void flushRespondedConnections() {
+            Connection connection;
+            while ((connection = respondedConnections.poll()) != null) {
+                if (connection.key.isValid()) {
+                    handleIo(connection.key, connection, false);
+                }
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                accept();
+                return;
+            }
+            handleIo(key, (Connection) key.attachment(), key.isReadable());
+        }
+
+        /**
+         * Reads and writes what the connection is ready for; a failure closes only this connection.
+         */
+        private void handleIo(SelectionKey key, Connection connection, boolean readable) {
+            try {
+                if (readable) {
+                    connection.read();
+                }
+                if (key.isValid()) {
+                    connection.write();
+                }
+                if (key.isValid()) {
+                    key.interestOps(connection.hasResponseToWrite()
+                            ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!(e instanceof EOFException)) {
+                    e.printStackTrace();
+                }
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    private final class Connection implements Closeable {
+        private final SocketChannel channel;
+        private final TrackerProtocol.ClientEntry clientEntry;
+        private final EventLoop loop;
+        // responses in the order of the queries, an upload is answered only when it is durable
+        private final Queue<CompletableFuture<ByteBuffer>> pendingWrites = new ArrayDeque<>();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private SelectionKey key;
+
+        private Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            clientEntry = new TrackerProtocol.ClientEntry(channel.socket());
+        }
+
+        private void read() throws IOException {
+            if (!readBuffer.hasRemaining()) {
+                if (readBuffer.capacity() >= MAX_FRAME_SIZE) {
+                    throw new IOException("Query is too large");
+                }
+                ByteBuffer newBuffer = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                newBuffer.put(readBuffer);
+                readBuffer = newBuffer;
+            }
+            if (channel.read(readBuffer) == -1) {
+                throw new EOFException();
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining() && decodeFrame()) {
+                readBuffer.compact();
+                readBuffer.flip();
+            }
+            readBuffer.compact();
+            write();
+        }
+
+        /**
+         * Processes one query if it has been received completely.
+         * Queries read all of their arguments before changing any state,
+         * so an incomplete frame can simply be retried when more bytes arrive.
+         */
+        private boolean decodeFrame() throws IOException {
+            readBuffer.mark();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            DataInputStream inputStream = new DataInputStream(new ByteBufferInputStream(readBuffer));
+            CompletableFuture<Void> written;
+            try {
+                int type = TrackerProtocol.getQueryType(inputStream);
+                written = server.processQuery(type, inputStream, new DataOutputStream(response),
+                        clientEntry, this);
+            } catch (EOFException e) {
+                readBuffer.reset();
+                return false;
+            }
+            CompletableFuture<ByteBuffer> pendingWrite = written.thenApply(
+                    ignored -> ByteBuffer.wrap(response.toByteArray()));
+            pendingWrites.add(pendingWrite);
+            if (!pendingWrite.isDone()) {
+                pendingWrite.whenComplete((ignored, e) -> loop.responded(this));
+            }
+            return true;
+        }
+
+        private boolean hasResponseToWrite() {
+            return !pendingWrites.isEmpty() && pendingWrites.peek().isDone();
+        }
+
+        private void write() throws IOException {
+            while (hasResponseToWrite()) {
+                ByteBuffer buffer;
+                try {
+                    buffer = pendingWrites.peek().join();
+                } catch (CompletionException e) {
+                    throw new IOException("Query failed", e.getCause());
+                }
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                pendingWrites.poll();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            // CHECKSTYLE.OFF: MagicNumber
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+            // CHECKSTYLE.ON: MagicNumber
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package ru.spbau.mit;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Limits the number of peers a seeder uploads to at once, choking the others.
+ *
+ * Every {@link #evaluate} the interested peers, those that have asked for data since the previous one,
+ * are ranked by the number of bytes uploaded to them, and the fastest ones get the slots.
+ * One more slot is given to a random choked peer and rotated every few evaluations (optimistic unchoke),
+ * so that a new peer can show how fast it is. Slots freed in between go to the peers that ask first,
+ * with the peers blocked in {@link #awaitUnchoke} served in the order they came.
+ *
+ * A peer here is a connection, a downloader that fetches several parts at once is several peers.
+ */
+class UploadSlots {
+    private static final int OPTIMISTIC_UNCHOKE_PERIOD = 3;
+
+    private final Random random = new Random();
+    private final Set<Peer> peers = new LinkedHashSet<>();
+    private final Deque<Peer> waitingPeers = new ArrayDeque<>();
+    private final long evaluationPeriod;
+    private int slotCount;
+    private int unchokedCount = 0;
+    private Peer optimisticPeer = null;
+    private int evaluationCount = 0;
+    private long nextEvaluationTime;
+
+    /**
+     * Upload state of a connected peer, closed when the peer disconnects.
+     */
+    public final class Peer implements Closeable {
+        private long uploadedBytes = 0;
+        private boolean interested = false;
+        private boolean unchoked = false;
+
+        private Peer() {
+        }
+
+        public void uploaded(long bytes) {
+            synchronized (UploadSlots.this) {
+                uploadedBytes += bytes;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (UploadSlots.this) {
+                peers.remove(this);
+                waitingPeers.remove(this);
+                if (optimisticPeer == this) {
+                    optimisticPeer = null;
+                }
+                choke(this);
+                unchokeWaiting();
+            }
+        }
+    }
+
+    /**
+     * @param slotCount number of peers unchoked for their upload rate, there is one optimistic slot more
+     */
+    UploadSlots(int slotCount, long evaluationPeriod, long now) {
+        this.slotCount = slotCount;
+        this.evaluationPeriod = evaluationPeriod;
+        nextEvaluationTime = now + evaluationPeriod;
+    }
+
+    public synchronized Peer register() {
+        Peer peer = new Peer();
+        peers.add(peer);
+        return peer;
+    }
+
+    /**
+     * Changes the number of slots, the peers over the limit are choked by the next evaluation.
+     */
+    public synchronized void setSlotCount(int slotCount) {
+        this.slotCount = slotCount;
+        unchokeWaiting();
+    }
+
+    /**
+     * @return whether the peer may be uploaded to now, a choked peer is unchoked if a slot is free
+     */
+    public synchronized boolean tryUnchoke(Peer peer) {
+        peer.interested = true;
+        if (!peer.unchoked && waitingPeers.isEmpty() && hasFreeSlot()) {
+            unchoke(peer);
+        }
+        return peer.unchoked;
+    }
+
+    /**
+     * Waits in line until the peer is unchoked.
+     */
+    public synchronized void awaitUnchoke(Peer peer) throws InterruptedException {
+        peer.interested = true;
+        if (peer.unchoked) {
+            return;
+        }
+        waitingPeers.add(peer);
+        try {
+            unchokeWaiting();
+            while (!peer.unchoked) {
+                wait();
+            }
+        } finally {
+            waitingPeers.remove(peer);
+        }
+    }
+
+    /**
+     * @return milliseconds until the next evaluation, when a choked peer may be unchoked
+     */
+    public synchronized long getRetryDelay(long now) {
+        return Math.max(0, nextEvaluationTime - now);
+    }
+
+    /**
+     * Gives the slots to the peers that have been uploaded to the fastest since the previous evaluation.
+     */
+    public synchronized void evaluate(long now) {
+        nextEvaluationTime = now + evaluationPeriod;
+        evaluationCount++;
+        // waiting peers go first, so that they win the ties; the other peers tie in random order
+        List<Peer> interestedPeers = new ArrayList<>(waitingPeers);
+        List<Peer> otherPeers = new ArrayList<>();
+        for (Peer peer : peers) {
+            if (peer.interested && !waitingPeers.contains(peer)) {
+                otherPeers.add(peer);
+            }
+        }
+        Collections.shuffle(otherPeers, random);
+        interestedPeers.addAll(otherPeers);
+        interestedPeers.sort(Comparator.comparingLong((Peer peer) -> peer.uploadedBytes).reversed());
+
+        List<Peer> unchokedPeers = new ArrayList<>(interestedPeers.subList(0,
+                Math.min(slotCount, interestedPeers.size())));
+        List<Peer> chokedPeers = interestedPeers.subList(unchokedPeers.size(), interestedPeers.size());
+        if (optimisticPeer == null || !optimisticPeer.interested
+                || evaluationCount % OPTIMISTIC_UNCHOKE_PERIOD == 0) {
+            optimisticPeer = chokedPeers.isEmpty() ? null : chokedPeers.get(random.nextInt(chokedPeers.size()));
+        }
+        if (optimisticPeer != null && !unchokedPeers.contains(optimisticPeer)) {
+            unchokedPeers.add(optimisticPeer);
+        }
+
+        for (Peer peer : peers) {
+            choke(peer);
+            peer.uploadedBytes = 0;
+            peer.interested = false;
+        }
+        for (Peer peer : unchokedPeers) {
+            unchoke(peer);
+        }
+        for (Peer peer : waitingPeers) {
+            peer.interested = true; // still waiting for data
+        }
+        unchokeWaiting();
+        notifyAll();
+    }
+
+    private boolean hasFreeSlot() {
+        return unchokedCount < slotCount + 1;
+    }
+
+    private void unchokeWaiting() {
+        boolean unchoked = false;
+        for (Peer peer : waitingPeers) {
+            if (!hasFreeSlot()) {
+                break;
+            }
+            if (!peer.unchoked) {
+                unchoke(peer);
+                unchoked = true;
+            }
+        }
+        if (unchoked) {
+            notifyAll();
+        }
+    }
+
+    private void unchoke(Peer peer) {
+        if (!peer.unchoked) {
+            peer.unchoked = true;
+            unchokedCount++;
+        }
+    }
+
+    private void choke(Peer peer) {
+        if (peer.unchoked) {
+            peer.unchoked = false;
+            unchokedCount--;
+        }
+    }
+}
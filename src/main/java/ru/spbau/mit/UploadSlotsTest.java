@@ -0,0 +1,119 @@
+package ru.spbau.mit;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UploadSlotsTest {
+    private static final long PERIOD = 1000;
+    private static final long WAIT_SECONDS = 10;
+
+    // CHECKSTYLE.OFF: MagicNumber
+    @Test
+    public void testSlotsBounded() {
+        UploadSlots slots = new UploadSlots(2, PERIOD, 0);
+        UploadSlots.Peer[] peers = register(slots, 4);
+        assertTrue(slots.tryUnchoke(peers[0]));
+        assertTrue(slots.tryUnchoke(peers[1]));
+        assertTrue("optimistic slot", slots.tryUnchoke(peers[2]));
+        assertFalse(slots.tryUnchoke(peers[3]));
+        assertTrue("unchoked peer stays unchoked", slots.tryUnchoke(peers[0]));
+        peers[1].close();
+        assertTrue(slots.tryUnchoke(peers[3]));
+    }
+
+    @Test
+    public void testEvaluateRanksByUploadedBytes() {
+        UploadSlots slots = new UploadSlots(2, PERIOD, 0);
+        UploadSlots.Peer[] peers = register(slots, 5);
+        for (int i = 0; i < peers.length; i++) {
+            slots.tryUnchoke(peers[i]);
+            peers[i].uploaded(i * 100);
+        }
+        slots.evaluate(PERIOD);
+        assertTrue(slots.tryUnchoke(peers[4]));
+        assertTrue(slots.tryUnchoke(peers[3]));
+        int optimisticCount = 0;
+        for (int i = 0; i < 3; i++) {
+            if (slots.tryUnchoke(peers[i])) {
+                optimisticCount++;
+            }
+        }
+        assertEquals(1, optimisticCount);
+    }
+
+    @Test
+    public void testEvaluateChokesUninterestedPeers() {
+        UploadSlots slots = new UploadSlots(1, PERIOD, 0);
+        UploadSlots.Peer[] peers = register(slots, 3);
+        assertTrue(slots.tryUnchoke(peers[0]));
+        assertTrue(slots.tryUnchoke(peers[1]));
+        peers[0].uploaded(1);
+        slots.evaluate(PERIOD);
+        assertFalse(slots.tryUnchoke(peers[2]));
+        // only peers[2] has asked for data since the evaluation, the unchoked peers lose their slots
+        slots.evaluate(2 * PERIOD);
+        assertTrue(slots.tryUnchoke(peers[2]));
+        assertTrue(slots.tryUnchoke(peers[0]));
+        assertFalse(slots.tryUnchoke(peers[1]));
+    }
+
+    @Test
+    public void testWaitingPeersServedInOrder() throws Exception {
+        UploadSlots slots = new UploadSlots(0, PERIOD, 0);
+        UploadSlots.Peer[] peers = register(slots, 4);
+        assertTrue(slots.tryUnchoke(peers[0]));
+        CompletableFuture<Void> first = awaitUnchoke(slots, peers[1]);
+        CompletableFuture<Void> second = awaitUnchoke(slots, peers[2]);
+        peers[0].close();
+        first.get(WAIT_SECONDS, TimeUnit.SECONDS);
+        assertFalse(second.isDone());
+        assertFalse("waiting peers go first", slots.tryUnchoke(peers[3]));
+        peers[1].close();
+        second.get(WAIT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testRetryDelay() {
+        UploadSlots slots = new UploadSlots(1, PERIOD, 0);
+        assertEquals(PERIOD - 400, slots.getRetryDelay(400));
+        assertEquals(0, slots.getRetryDelay(2 * PERIOD));
+        slots.evaluate(2 * PERIOD);
+        assertEquals(PERIOD, slots.getRetryDelay(2 * PERIOD));
+    }
+    // CHECKSTYLE.ON: MagicNumber
+
+    private static UploadSlots.Peer[] register(UploadSlots slots, int count) {
+        UploadSlots.Peer[] peers = new UploadSlots.Peer[count];
+        for (int i = 0; i < count; i++) {
+            peers[i] = slots.register();
+        }
+        return peers;
+    }
+
+    /**
+     * Starts waiting for the peer to be unchoked and returns once the waiting thread is blocked.
+     */
+    private static CompletableFuture<Void> awaitUnchoke(UploadSlots slots, UploadSlots.Peer peer) {
+        CompletableFuture<Void> unchoked = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                slots.awaitUnchoke(peer);
+                unchoked.complete(null);
+            } catch (InterruptedException e) {
+                unchoked.completeExceptionally(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        while (thread.getState() != Thread.State.WAITING && !unchoked.isDone()) {
+            Thread.yield();
+        }
+        return unchoked;
+    }
+}